@@ -105,6 +105,9 @@ public abstract class AtomSource extends CommonAttributes {
      * Returns absolute URI of feed or entry from {@linkplain #getBase() Base URI}
      * and Atom Link with rel 'self', or null if there's not any self Link.
      *
+     * <p>Note that base URI inherited from the enclosing feed is not taken into
+     * account, use {@link BaseUriResolver} for that.</p>
+     *
      * @return URI
      */
     public URI getSelfURI() {
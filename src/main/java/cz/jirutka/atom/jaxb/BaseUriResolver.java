@@ -0,0 +1,323 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.atom.jaxb;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Resolves relative references in a {@linkplain Feed} according to the
+ * <tt>xml:base</tt> scope they appear in.
+ *
+ * <p>{@link AtomSource#getSelfURI()} takes into account only the object's
+ * own {@linkplain CommonAttributes#base base}, thus it can't resolve links
+ * of an entry that inherits the base from its feed. This resolver walks the
+ * whole feed once, tracking the effective base URI of every element
+ * (feed, entry, link and person) and resolves
+ * {@linkplain AtomLink#href links' href} and
+ * {@linkplain AtomPerson#uri persons' URI} against it. The results are kept
+ * in the resolver, so repeated lookups don't resolve anything again. Same
+ * references against the same base (typically the feed's base shared by all
+ * entries) are resolved only once.</p>
+ *
+ * <p>The resolver captures state of the feed at the time of
+ * {@link #BaseUriResolver(Feed, URI) construction}; when the feed is modified
+ * afterwards, create a new one.</p>
+ *
+ * @see <a href="http://tools.ietf.org/html/rfc4287#section-2">RFC 4287, Page 6</a>
+ * @see <a href="http://www.w3.org/TR/xmlbase/">XML Base</a>
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class BaseUriResolver {
+
+    /** Effective base URIs of all elements (feed, entries, links, persons). */
+    private final Map<CommonAttributes, URI> bases = new IdentityHashMap<CommonAttributes, URI>();
+
+    /** Resolved hrefs of links and URIs of persons. */
+    private final Map<CommonAttributes, URI> resolved = new IdentityHashMap<CommonAttributes, URI>();
+
+    /** Cache of resolved references per base URI. */
+    private final Map<URI, Map<URI, URI>> cache = new HashMap<URI, Map<URI, URI>>();
+
+    private final Feed<?> feed;
+
+
+    /**
+     * @param feed the feed to resolve
+     */
+    public BaseUriResolver(Feed<?> feed) {
+        this(feed, null);
+    }
+
+    /**
+     * @param feed the feed to resolve
+     * @param documentURI URI the feed document has been retrieved from
+     *        (used as the base URI of the document), or null
+     */
+    public BaseUriResolver(Feed<?> feed, URI documentURI) {
+        this.feed = feed;
+
+        URI feedBase = scope(documentURI, feed);
+        resolveAll(feed, feedBase);
+
+        for (Entry<?> entry : feed.getEntries()) {
+            resolveAll(entry, scope(feedBase, entry));
+        }
+    }
+
+
+    /**
+     * Returns the effective base URI of the given element of the feed, i.e.
+     * its own <tt>xml:base</tt> resolved against the inherited one.
+     *
+     * @param element feed, entry, link or person from the resolved feed
+     * @return the base URI, or null if there's none or the element doesn't
+     *         belong to the resolved feed
+     */
+    public URI getBase(CommonAttributes element) {
+        return bases.get(element);
+    }
+
+    /**
+     * @param link link from the resolved feed
+     * @return the resolved {@linkplain AtomLink#href href}, or null if the
+     *         link doesn't belong to the resolved feed or has no href
+     */
+    public URI getHref(AtomLink link) {
+        return resolved.get(link);
+    }
+
+    /**
+     * @param person author from the resolved feed
+     * @return the resolved {@linkplain AtomPerson#uri URI}, or null if the
+     *         person doesn't belong to the resolved feed or has no URI
+     */
+    public URI getUri(AtomPerson person) {
+        return resolved.get(person);
+    }
+
+    /**
+     * Same as {@link AtomSource#getSelfURI()}, but takes into account also
+     * the inherited base URI.
+     *
+     * @param source the feed or an entry from the resolved feed
+     * @return URI of the last link with rel 'self', or null if there's not
+     *         any self Link
+     */
+    public URI getSelfURI(AtomSource source) {
+        URI uri = null;
+
+        for (AtomLink link : source.getLinks()) {
+            if (AtomLink.SELF.equals(link.getRel())) {
+                uri = getHref(link);
+            }
+        }
+        return uri;
+    }
+
+    /**
+     * Rewrites the resolved feed so that it does not depend on the base URI;
+     * all hrefs of links and URIs of persons are replaced with the resolved
+     * ones and all <tt>xml:base</tt> attributes with the effective base URIs.
+     * Note that <tt>xml:base</tt> attributes are not removed, because
+     * contents of the entries may also contain relative references.
+     */
+    public void makeAbsolute() {
+        for (Map.Entry<CommonAttributes, URI> e : bases.entrySet()) {
+            if (e.getKey().getBase() != null) {
+                e.getKey().setBase(e.getValue());
+            }
+        }
+        for (Map.Entry<CommonAttributes, URI> e : resolved.entrySet()) {
+            if (e.getKey() instanceof AtomLink) {
+                ((AtomLink) e.getKey()).setHref(e.getValue());
+            } else {
+                ((AtomPerson) e.getKey()).setUri(e.getValue());
+            }
+        }
+    }
+
+    /** @return the resolved feed */
+    public Feed<?> getFeed() { return feed; }
+
+
+
+    private void resolveAll(AtomSource source, URI base) {
+        for (AtomLink link : source.getLinks()) {
+            URI linkBase = scope(base, link);
+            if (link.getHref() != null) {
+                resolved.put(link, resolveCached(linkBase, link.getHref()));
+            }
+        }
+        for (AtomPerson person : source.getAuthors()) {
+            URI personBase = scope(base, person);
+            if (person.getUri() != null) {
+                resolved.put(person, resolveCached(personBase, person.getUri()));
+            }
+        }
+    }
+
+    /**
+     * Computes and records the effective base URI of the given element.
+     */
+    private URI scope(URI inherited, CommonAttributes element) {
+        URI base = element.getBase() != null ? resolveCached(inherited, element.getBase()) : inherited;
+        if (base != null) {
+            bases.put(element, base);
+        }
+        return base;
+    }
+
+    private URI resolveCached(URI base, URI reference) {
+        if (base == null || reference.isAbsolute()) {
+            return reference;
+        }
+        Map<URI, URI> references = cache.get(base);
+        if (references == null) {
+            references = new HashMap<URI, URI>();
+            cache.put(base, references);
+        }
+        URI uri = references.get(reference);
+        if (uri == null) {
+            uri = resolve(base, reference);
+            references.put(reference, uri);
+        }
+        return uri;
+    }
+
+    /**
+     * Resolves the given reference against the base URI according to
+     * <a href="http://tools.ietf.org/html/rfc3986#section-5.2">RFC 3986,
+     * section 5.2</a>, used by Atom. Unlike {@link URI#resolve(URI)}, which
+     * follows the obsolete RFC 2396, it handles empty and query-only
+     * references and removes all dot segments (e.g. <tt>""</tt> against
+     * <tt>http://a/b/c/d;p?q</tt> gives <tt>http://a/b/c/d;p?q</tt>, not
+     * <tt>http://a/b/c/</tt>). Dot segments are not removed from a merged
+     * path if the base is relative, so the result can be resolved later.
+     *
+     * @param base the base URI (absolute, or relative if not known yet)
+     * @param reference the reference to resolve
+     * @return the target URI
+     */
+    static URI resolve(URI base, URI reference) {
+        if (reference.isOpaque() || base.isOpaque()) {
+            return reference;  // e.g. mailto:, nothing to resolve
+        }
+        String scheme, authority, path, query;
+
+        if (reference.getScheme() != null) {
+            scheme = reference.getScheme();
+            authority = reference.getRawAuthority();
+            path = removeDotSegments(reference.getRawPath());
+            query = reference.getRawQuery();
+        } else {
+            scheme = base.getScheme();
+            if (reference.getRawAuthority() != null) {
+                authority = reference.getRawAuthority();
+                path = removeDotSegments(reference.getRawPath());
+                query = reference.getRawQuery();
+            } else {
+                authority = base.getRawAuthority();
+                String refPath = reference.getRawPath();
+
+                if (refPath.length() == 0) {
+                    path = base.getRawPath();
+                    query = reference.getRawQuery() != null ? reference.getRawQuery() : base.getRawQuery();
+                } else {
+                    if (refPath.startsWith("/")) {
+                        path = removeDotSegments(refPath);
+                    } else {
+                        path = merge(base, refPath);
+                        path = base.isAbsolute() ? removeDotSegments(path) : path;
+                    }
+                    query = reference.getRawQuery();
+                }
+            }
+        }
+        StringBuilder target = new StringBuilder();
+        if (scheme != null) {
+            target.append(scheme).append(':');
+        }
+        if (authority != null) {
+            target.append("//").append(authority);
+        }
+        target.append(path);
+        if (query != null) {
+            target.append('?').append(query);
+        }
+        if (reference.getRawFragment() != null) {
+            target.append('#').append(reference.getRawFragment());
+        }
+        return URI.create(target.toString());
+    }
+
+    /**
+     * Merges relative path of a reference with path of the base URI
+     * (RFC 3986, section 5.2.3).
+     */
+    private static String merge(URI base, String path) {
+        String basePath = base.getRawPath();
+        if (base.getRawAuthority() != null && basePath.length() == 0) {
+            return "/" + path;
+        }
+        return basePath.substring(0, basePath.lastIndexOf('/') + 1) + path;
+    }
+
+    /**
+     * Removes <tt>.</tt> and <tt>..</tt> segments from the given path
+     * (RFC 3986, section 5.2.4).
+     */
+    static String removeDotSegments(String path) {
+        if (path.indexOf('.') < 0) {
+            return path;
+        }
+        StringBuilder output = new StringBuilder(path.length());
+        String input = path;
+
+        while (input.length() > 0) {
+            if (input.startsWith("../")) {
+                input = input.substring(3);
+            } else if (input.startsWith("./") || input.startsWith("/./")) {
+                input = input.substring(2);
+            } else if (input.equals("/.")) {
+                input = "/";
+            } else if (input.startsWith("/../") || input.equals("/..")) {
+                input = input.length() == 3 ? "/" : input.substring(3);
+                output.setLength(Math.max(output.lastIndexOf("/"), 0));
+            } else if (input.equals(".") || input.equals("..")) {
+                input = "";
+            } else {
+                int end = input.indexOf('/', 1);
+                if (end < 0) {
+                    end = input.length();
+                }
+                output.append(input, 0, end);
+                input = input.substring(end);
+            }
+        }
+        return output.toString();
+    }
+}
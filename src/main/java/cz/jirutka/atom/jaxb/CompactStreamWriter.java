@@ -0,0 +1,615 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.atom.jaxb;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import static cz.jirutka.atom.jaxb.Namespaces.OPENSEARCH_NS;
+import static cz.jirutka.atom.jaxb.Namespaces.XML_NS;
+import static javax.xml.XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI;
+
+/**
+ * Filtering {@link XMLStreamWriter} that produces compact output for
+ * {@link FeedWriter}.
+ *
+ * <p>It ignores namespace declarations made by the marshaller and declares
+ * namespaces by itself; the fixed namespaces once on the root element with
+ * the fixed prefixes, any other namespace on the element where it's used
+ * (with prefix <tt>ns1</tt>, <tt>ns2</tt>, ...). Prefixes in values of
+ * <tt>xsi:type</tt> attributes are translated as well. Furthermore it drops
+ * <tt>xml:lang</tt> and <tt>xml:base</tt> attributes that don't change the
+ * inherited values and writes elements without content as empty-element
+ * tags.</p>
+ *
+ * <p>The output depends only on the elements written, not on where the
+ * marshaller has declared namespaces, so a fragment written with the same
+ * scope gives exactly the same bytes as when written inside the document.</p>
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+class CompactStreamWriter implements XMLStreamWriter {
+
+    private static final String XSI_TYPE = "type";
+
+    private final XMLStreamWriter out;
+    private final String encoding;
+
+    /** Fixed namespaces; prefix -> namespace URI. */
+    private final Map<String, String> fixed;
+
+    /** Whether to declare the fixed namespaces on the root element. */
+    private boolean declareFixed;
+
+    private Frame top;
+
+    /** Start tag of the current element that has not been written yet; prefix, local name, URI. */
+    private String[] pending;
+    private final List<String[]> pendingAttributes = new ArrayList<String[]>();
+
+    private EntriesWriter entriesWriter;
+
+    /** Root namespace context set by the marshaller, or null. */
+    private NamespaceContext sourceContext;
+
+
+    /**
+     * Creates a writer for a whole document.
+     *
+     * @param out the underlying writer
+     * @param encoding encoding of the document
+     * @param fixed fixed namespaces (prefix -> namespace URI)
+     */
+    CompactStreamWriter(XMLStreamWriter out, String encoding, Map<String, String> fixed) {
+        this(out, encoding, fixed, null, null);
+        this.declareFixed = true;
+    }
+
+    /**
+     * Creates a writer for a fragment of a document, where the fixed
+     * namespaces and the given xml:lang and xml:base are already in scope.
+     *
+     * @param out the underlying writer
+     * @param encoding encoding of the document
+     * @param fixed fixed namespaces (prefix -> namespace URI)
+     * @param lang inherited xml:lang, or null
+     * @param base inherited (effective) xml:base, or null
+     */
+    CompactStreamWriter(XMLStreamWriter out, String encoding, Map<String, String> fixed,
+                        String lang, URI base) {
+        this.out = out;
+        this.encoding = encoding;
+        this.fixed = fixed;
+        this.top = new Frame(null);
+        top.lang = lang;
+        top.base = base;
+        top.output.putAll(fixed);
+    }
+
+
+    /**
+     * Sets a callback that writes the feed's entries directly to the
+     * underlying output stream; it's invoked at the place of entries in the
+     * root element, i.e. before the first OpenSearch element or the end tag
+     * of the root element. Used for writing a feed with pre-rendered
+     * entries.
+     *
+     * @param entriesWriter the callback
+     */
+    void setEntriesWriter(EntriesWriter entriesWriter) {
+        this.entriesWriter = entriesWriter;
+    }
+
+
+    ////////  Elements  ////////
+
+    public void writeStartDocument() throws XMLStreamException {
+        out.writeStartDocument(encoding, "1.0");
+    }
+
+    public void writeStartDocument(String version) throws XMLStreamException {
+        out.writeStartDocument(encoding, version);
+    }
+
+    public void writeStartDocument(String encoding, String version) throws XMLStreamException {
+        out.writeStartDocument(encoding, version);
+    }
+
+    public void writeEndDocument() throws XMLStreamException {
+        closeStartTag();
+        out.writeEndDocument();
+    }
+
+    public void writeStartElement(String localName) throws XMLStreamException {
+        writeStartElement(null, localName, sourceNamespace(""));
+    }
+
+    public void writeStartElement(String namespaceURI, String localName) throws XMLStreamException {
+        writeStartElement(null, localName, namespaceURI);
+    }
+
+    public void writeStartElement(String prefix, String localName, String namespaceURI)
+            throws XMLStreamException {
+        startElement(localName, namespaceURI, false);
+    }
+
+    public void writeEmptyElement(String localName) throws XMLStreamException {
+        writeEmptyElement(null, localName, sourceNamespace(""));
+    }
+
+    public void writeEmptyElement(String namespaceURI, String localName) throws XMLStreamException {
+        writeEmptyElement(null, localName, namespaceURI);
+    }
+
+    public void writeEmptyElement(String prefix, String localName, String namespaceURI)
+            throws XMLStreamException {
+        startElement(localName, namespaceURI, true);
+    }
+
+    public void writeEndElement() throws XMLStreamException {
+        closeEmpty();
+        if (entriesWriter != null && isRoot()) {
+            writeEntries();
+        }
+        endElement();
+    }
+
+
+    ////////  Namespaces  ////////
+
+    public void writeNamespace(String prefix, String namespaceURI) throws XMLStreamException {
+        if (prefix == null || prefix.length() == 0 || XMLConstants.XMLNS_ATTRIBUTE.equals(prefix)) {
+            writeDefaultNamespace(namespaceURI);
+        } else {
+            top.source.put(prefix, namespaceURI);
+        }
+    }
+
+    public void writeDefaultNamespace(String namespaceURI) throws XMLStreamException {
+        top.source.put("", namespaceURI);
+    }
+
+    public void setPrefix(String prefix, String uri) throws XMLStreamException {
+        top.source.put(prefix, uri);
+    }
+
+    public void setDefaultNamespace(String uri) throws XMLStreamException {
+        top.source.put("", uri);
+    }
+
+    public String getPrefix(String uri) throws XMLStreamException {
+        return sourcePrefix(uri);
+    }
+
+    public void setNamespaceContext(NamespaceContext context) throws XMLStreamException {
+        if (top.parent != null || pending != null) {
+            throw new XMLStreamException("Namespace context must be set before the root element");
+        }
+        sourceContext = context;
+    }
+
+    /**
+     * Returns namespace context of the written (source) elements, not of the
+     * output.
+     */
+    public NamespaceContext getNamespaceContext() {
+        return new NamespaceContext() {
+            public String getNamespaceURI(String prefix) {
+                if (XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+                    return XMLConstants.XML_NS_URI;
+                } else if (XMLConstants.XMLNS_ATTRIBUTE.equals(prefix)) {
+                    return XMLConstants.XMLNS_ATTRIBUTE_NS_URI;
+                }
+                String uri = sourceNamespace(prefix);
+                return uri != null ? uri : XMLConstants.NULL_NS_URI;
+            }
+            public String getPrefix(String namespaceURI) {
+                return sourcePrefix(namespaceURI);
+            }
+            public Iterator<String> getPrefixes(String namespaceURI) {
+                String prefix = sourcePrefix(namespaceURI);
+                return prefix != null
+                        ? Collections.singletonList(prefix).iterator()
+                        : Collections.<String>emptyList().iterator();
+            }
+        };
+    }
+
+
+    ////////  Attributes  ////////
+
+    public void writeAttribute(String localName, String value) throws XMLStreamException {
+        attribute(null, null, localName, value);
+    }
+
+    public void writeAttribute(String namespaceURI, String localName, String value)
+            throws XMLStreamException {
+        writeAttribute(null, namespaceURI, localName, value);
+    }
+
+    public void writeAttribute(String prefix, String namespaceURI, String localName, String value)
+            throws XMLStreamException {
+
+        if (namespaceURI == null || namespaceURI.length() == 0) {
+            attribute(null, null, localName, value);
+
+        } else if (XML_NS.equals(namespaceURI)) {
+            if (!isRedundant(localName, value)) {
+                attribute(XMLConstants.XML_NS_PREFIX, XML_NS, localName, value);
+            }
+        } else {
+            if (W3C_XML_SCHEMA_INSTANCE_NS_URI.equals(namespaceURI) && XSI_TYPE.equals(localName)) {
+                value = translateQName(value);
+            }
+            attribute(outputPrefix(namespaceURI, true), namespaceURI, localName, value);
+        }
+    }
+
+
+    ////////  Content  ////////
+
+    public void writeCharacters(String text) throws XMLStreamException {
+        closeStartTag();
+        out.writeCharacters(text);
+    }
+
+    public void writeCharacters(char[] text, int start, int len) throws XMLStreamException {
+        closeStartTag();
+        out.writeCharacters(text, start, len);
+    }
+
+    public void writeCData(String data) throws XMLStreamException {
+        closeStartTag();
+        out.writeCData(data);
+    }
+
+    public void writeComment(String data) throws XMLStreamException {
+        closeStartTag();
+        out.writeComment(data);
+    }
+
+    public void writeProcessingInstruction(String target) throws XMLStreamException {
+        closeStartTag();
+        out.writeProcessingInstruction(target);
+    }
+
+    public void writeProcessingInstruction(String target, String data) throws XMLStreamException {
+        closeStartTag();
+        out.writeProcessingInstruction(target, data);
+    }
+
+    public void writeEntityRef(String name) throws XMLStreamException {
+        closeStartTag();
+        out.writeEntityRef(name);
+    }
+
+    public void writeDTD(String dtd) throws XMLStreamException {
+        out.writeDTD(dtd);
+    }
+
+
+    ////////  Other  ////////
+
+    public Object getProperty(String name) {
+        return out.getProperty(name);
+    }
+
+    public void flush() throws XMLStreamException {
+        out.flush();
+    }
+
+    public void close() throws XMLStreamException {
+        out.close();
+    }
+
+
+
+    private void startElement(String localName, String namespaceURI, boolean empty)
+            throws XMLStreamException {
+        closeEmpty();
+        if (entriesWriter != null && isRoot() && OPENSEARCH_NS.equals(namespaceURI)) {
+            writeEntries();
+        }
+        closeStartTag();
+        top = new Frame(top);
+        top.empty = empty;
+
+        if (namespaceURI == null) {
+            namespaceURI = "";
+        }
+        pending = new String[] { outputPrefix(namespaceURI, false), localName, namespaceURI };
+    }
+
+    /**
+     * Returns the namespace bound to the given prefix in the marshaller's
+     * scope, or null.
+     */
+    private String sourceNamespace(String prefix) {
+        for (Frame frame = top; frame != null; frame = frame.parent) {
+            String uri = frame.source.get(prefix);
+            if (uri != null) return uri;
+        }
+        if (sourceContext != null) {
+            String uri = sourceContext.getNamespaceURI(prefix);
+            if (uri != null && (uri.length() > 0 || prefix.length() == 0)) return uri;
+        }
+        return prefix.length() == 0 ? "" : null;
+    }
+
+    /**
+     * Returns a prefix bound to the given namespace in the marshaller's
+     * scope, or null.
+     */
+    private String sourcePrefix(String uri) {
+        for (Frame frame = top; frame != null; frame = frame.parent) {
+            for (Map.Entry<String, String> e : frame.source.entrySet()) {
+                if (e.getValue().equals(uri) && uri.equals(sourceNamespace(e.getKey()))) {
+                    return e.getKey();
+                }
+            }
+        }
+        if (sourceContext != null) {
+            String prefix = sourceContext.getPrefix(uri);
+            if (prefix != null && uri.equals(sourceNamespace(prefix))) {
+                return prefix;
+            }
+        }
+        return null;
+    }
+
+    private boolean isRoot() {
+        return top.parent != null && top.parent.parent == null;
+    }
+
+    /**
+     * Finishes everything written so far and lets {@link #entriesWriter}
+     * write the entries directly to the underlying stream.
+     */
+    private void writeEntries() throws XMLStreamException {
+        EntriesWriter writer = entriesWriter;
+        entriesWriter = null;
+
+        closeStartTag();
+        out.writeCharacters("");  // close the start tag
+        out.flush();
+
+        writer.writeEntries();
+    }
+
+    private void endElement() throws XMLStreamException {
+        if (pending != null) {
+            writeStartTag(true);
+        } else {
+            out.writeEndElement();
+        }
+        top = top.parent;
+    }
+
+    private void attribute(String prefix, String namespaceURI, String localName, String value)
+            throws XMLStreamException {
+        if (pending == null) {
+            throw new XMLStreamException("Attribute is not allowed here: " + localName);
+        }
+        pendingAttributes.add(new String[] { prefix, namespaceURI, localName, value });
+    }
+
+    /**
+     * Writes the pending start tag of the current element, if any.
+     */
+    private void closeStartTag() throws XMLStreamException {
+        closeEmpty();
+        if (pending != null) {
+            writeStartTag(false);
+        }
+    }
+
+    /**
+     * Ends the current element if it has been written by
+     * {@link #writeEmptyElement(String, String, String)}.
+     */
+    private void closeEmpty() throws XMLStreamException {
+        if (top.empty) {
+            endElement();
+        }
+    }
+
+    private void writeStartTag(boolean empty) throws XMLStreamException {
+        String[] tag = pending;
+        pending = null;
+
+        if (empty) {
+            out.writeEmptyElement(tag[0], tag[1], tag[2]);
+        } else {
+            out.writeStartElement(tag[0], tag[1], tag[2]);
+        }
+        if (declareFixed) {
+            for (Map.Entry<String, String> e : fixed.entrySet()) {
+                writeDeclaration(e.getKey(), e.getValue());
+            }
+            declareFixed = false;
+        }
+        for (Map.Entry<String, String> e : top.output.entrySet()) {
+            writeDeclaration(e.getKey(), e.getValue());
+        }
+        for (String[] attr : pendingAttributes) {
+            if (attr[1] == null) {
+                out.writeAttribute(attr[2], attr[3]);
+            } else {
+                out.writeAttribute(attr[0], attr[1], attr[2], attr[3]);
+            }
+        }
+        pendingAttributes.clear();
+    }
+
+    private void writeDeclaration(String prefix, String namespaceURI) throws XMLStreamException {
+        if (prefix.length() == 0) {
+            out.writeDefaultNamespace(namespaceURI);
+        } else {
+            out.writeNamespace(prefix, namespaceURI);
+        }
+    }
+
+    /**
+     * Returns the prefix to use for the given namespace in the output;
+     * declares it on the current element if it's not in scope yet.
+     */
+    private String outputPrefix(String namespaceURI, boolean attribute) throws XMLStreamException {
+        if (namespaceURI.length() == 0 && top.outputNamespace("").length() == 0) {
+            return "";
+        }
+        // the fixed prefix, if not redeclared
+        for (Map.Entry<String, String> e : fixed.entrySet()) {
+            String prefix = e.getKey();
+            if (e.getValue().equals(namespaceURI) && !(attribute && prefix.length() == 0)
+                    && namespaceURI.equals(top.outputNamespace(prefix))) {
+                return prefix;
+            }
+        }
+        // any prefix in scope, nearest first
+        for (Frame frame = top; frame != null; frame = frame.parent) {
+            for (Map.Entry<String, String> e : frame.output.entrySet()) {
+                String prefix = e.getKey();
+                if (e.getValue().equals(namespaceURI) && !(attribute && prefix.length() == 0)
+                        && namespaceURI.equals(top.outputNamespace(prefix))) {
+                    return prefix;
+                }
+            }
+        }
+        String prefix;
+        if (namespaceURI.length() == 0) {
+            prefix = "";  // undeclare the default namespace
+        } else {
+            int n = 1;
+            while (top.outputNamespace("ns" + n) != null) n++;
+            prefix = "ns" + n;
+        }
+        top.output.put(prefix, namespaceURI);
+
+        return prefix;
+    }
+
+    /**
+     * Translates prefix of the given QName from the marshaller's scope to
+     * the output's scope.
+     */
+    private String translateQName(String qname) throws XMLStreamException {
+        int colon = qname.indexOf(':');
+        String prefix = colon > 0 ? qname.substring(0, colon) : "";
+        String namespaceURI = sourceNamespace(prefix);
+
+        if (namespaceURI == null) {
+            return qname;  // unknown, leave as is
+        }
+        String localName = qname.substring(colon + 1);
+        prefix = outputPrefix(namespaceURI, false);
+
+        return prefix.length() == 0 ? localName : prefix + ':' + localName;
+    }
+
+    /**
+     * Checks whether the given xml:lang or xml:base attribute is redundant
+     * (i.e. doesn't change the inherited value) and updates the current
+     * scope.
+     */
+    private boolean isRedundant(String localName, String value) {
+        Frame parent = top.parent;
+
+        if ("lang".equals(localName)) {
+            if (value.equals(parent.lang)) {
+                return true;
+            }
+            top.lang = value;
+
+        } else if ("base".equals(localName)) {
+            URI base;
+            try {
+                base = parent.base != null
+                        ? BaseUriResolver.resolve(parent.base, new URI(value)) : new URI(value);
+            } catch (Exception ex) {
+                top.base = null;  // can't tell what's inherited anymore
+                return false;
+            }
+            if (base.equals(parent.base)) {
+                return true;
+            }
+            top.base = base;
+        }
+        return false;
+    }
+
+
+
+    /**
+     * @see CompactStreamWriter#setEntriesWriter(EntriesWriter)
+     */
+    interface EntriesWriter {
+
+        void writeEntries() throws XMLStreamException;
+    }
+
+    /**
+     * Scope of an element.
+     */
+    private static final class Frame {
+
+        final Frame parent;
+
+        /** Namespaces declared by the marshaller; prefix -> URI. */
+        final Map<String, String> source = new HashMap<String, String>(4);
+
+        /** Namespaces declared in the output; prefix -> URI. */
+        final Map<String, String> output = new LinkedHashMap<String, String>(4);
+
+        String lang;
+        URI base;
+        boolean empty;
+
+
+        Frame(Frame parent) {
+            this.parent = parent;
+            if (parent != null) {
+                this.lang = parent.lang;
+                this.base = parent.base;
+            }
+        }
+
+        String outputNamespace(String prefix) {
+            for (Frame frame = this; frame != null; frame = frame.parent) {
+                String uri = frame.output.get(prefix);
+                if (uri != null) return uri;
+            }
+            return prefix.length() == 0 ? "" : null;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.atom.jaxb;
+
+import java.util.AbstractList;
+import java.util.Date;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Sorted index of {@linkplain Feed Feed's} entries by a date, for fast
+ * range queries such as "entries updated since T" or "entries published
+ * between A and B".
+ *
+ * <p>The dates are kept as epoch milliseconds in a sorted primitive array
+ * along with positions of the entries, so a query is just a binary search
+ * and its result is a view of the feed's entries (nothing is copied). Thus
+ * the cost of a query depends on the size of its result, not of the feed.
+ * Entries without the indexed date are not indexed.</p>
+ *
+ * <p>The index captures the entries list at the time of construction; when
+ * entries of the feed are modified afterwards, create a new one. Instances
+ * are immutable and so thread-safe as long as the feed is not modified.</p>
+ *
+ * @param <T> type of entries {@link Entry#content content}
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class EntryDateIndex <T> {
+
+    /**
+     * The entry's date to index.
+     */
+    public enum Field {
+        /** {@link Entry#getPublished()} */
+        PUBLISHED,
+        /** {@link Entry#getUpdated()} */
+        UPDATED
+    }
+
+    private final Feed<T> feed;
+    private final List<Entry<T>> entries;
+
+    /** Indexed dates in ascending order. */
+    private final long[] times;
+
+    /** Positions of the entries in {@link #entries}, in order of {@link #times}. */
+    private final int[] positions;
+
+
+    /**
+     * @param feed the feed to index
+     * @param field the date to index entries by
+     */
+    public EntryDateIndex(Feed<T> feed, Field field) {
+        this.feed = feed;
+        this.entries = feed.getEntries();
+
+        int size = 0;
+        long[] keys = new long[entries.size()];
+        int[] found = new int[entries.size()];
+
+        for (int i = 0; i < entries.size(); i++) {
+            Entry<T> entry = entries.get(i);
+            Date date = field == Field.PUBLISHED ? entry.getPublished() : entry.getUpdated();
+            if (date != null) {
+                keys[size] = date.getTime();
+                found[size++] = i;
+            }
+        }
+        int[] order = sort(keys, size);
+
+        this.times = new long[size];
+        this.positions = new int[size];
+        for (int i = 0; i < size; i++) {
+            times[i] = keys[order[i]];
+            positions[i] = found[order[i]];
+        }
+    }
+
+
+    /**
+     * Returns entries with the indexed date at or after the given one,
+     * newest first.
+     *
+     * @param from the lower bound (inclusive)
+     * @return view of the matching entries
+     */
+    public List<Entry<T>> since(Date from) {
+        return view(lowerBound(from.getTime()), times.length);
+    }
+
+    /**
+     * Returns entries with the indexed date within the given range, newest
+     * first.
+     *
+     * @param from the lower bound (inclusive), or null for unbounded
+     * @param to the upper bound (exclusive), or null for unbounded
+     * @return view of the matching entries
+     */
+    public List<Entry<T>> between(Date from, Date to) {
+        int low = from != null ? lowerBound(from.getTime()) : 0;
+        int high = to != null ? lowerBound(to.getTime()) : times.length;
+
+        return view(low, Math.max(low, high));
+    }
+
+    /**
+     * Returns the number of entries with the indexed date within the given
+     * range, without creating a view.
+     *
+     * @param from the lower bound (inclusive), or null for unbounded
+     * @param to the upper bound (exclusive), or null for unbounded
+     * @return number of the matching entries
+     */
+    public int count(Date from, Date to) {
+        int low = from != null ? lowerBound(from.getTime()) : 0;
+        int high = to != null ? lowerBound(to.getTime()) : times.length;
+
+        return Math.max(high - low, 0);
+    }
+
+    /**
+     * Returns a new feed with the same metadata as the indexed one, containing
+     * the given entries.
+     *
+     * @param entries result of a query on this index
+     * @return the sub-feed
+     * @see Feed#withEntries(List)
+     */
+    public Feed<T> subFeed(List<Entry<T>> entries) {
+        return feed.withEntries(entries);
+    }
+
+    /** @return number of the indexed entries */
+    public int size() {
+        return times.length;
+    }
+
+
+
+    /**
+     * Returns index of the first time that is greater or equal to the given
+     * one, or length of the array if there's no such.
+     */
+    private int lowerBound(long time) {
+        int low = 0, high = times.length;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private List<Entry<T>> view(int from, int to) {
+        return new RangeView(from, to);
+    }
+
+    /**
+     * Returns indexes of the first <tt>size</tt> keys in ascending order of
+     * the keys; equal keys are in descending order of their indexes, so the
+     * newest-first views preserve order of the feed. Entries are often
+     * already sorted (either way), these cases are handled without sorting.
+     */
+    private static int[] sort(long[] keys, int size) {
+        int[] order = new int[size];
+        boolean ascending = true, descending = true;
+
+        for (int i = 1; i < size; i++) {
+            ascending &= keys[i - 1] < keys[i];
+            descending &= keys[i - 1] >= keys[i];
+        }
+        for (int i = 0; i < size; i++) {
+            order[i] = descending ? size - 1 - i : i;
+        }
+        if (!ascending && !descending) {
+            mergeSort(keys, order, new int[size], 0, size);
+        }
+        return order;
+    }
+
+    private static void mergeSort(long[] keys, int[] order, int[] buffer, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(keys, order, buffer, from, mid);
+        mergeSort(keys, order, buffer, mid, to);
+
+        if (keys[order[mid - 1]] < keys[order[mid]]) {
+            return;
+        }
+        System.arraycopy(order, from, buffer, from, to - from);
+
+        for (int i = from, l = from, r = mid; i < to; i++) {
+            if (r >= to || (l < mid && keys[buffer[l]] < keys[buffer[r]])) {
+                order[i] = buffer[l++];
+            } else {
+                order[i] = buffer[r++];
+            }
+        }
+    }
+
+
+
+    /**
+     * Read-only view of the entries between the given indexes of
+     * {@link #times}, in reverse order (i.e. newest first).
+     */
+    private final class RangeView extends AbstractList<Entry<T>> implements RandomAccess {
+
+        private final int from, to;
+
+        RangeView(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Entry<T> get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+            }
+            return entries.get(positions[to - 1 - index]);
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+    }
+}
@@ -0,0 +1,660 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.atom.jaxb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+
+/**
+ * Durable append-only journal of {@linkplain Entry entries}, used to restore
+ * a feed after restart without loading it from the original source.
+ *
+ * <p>The journal records puts (insert or update) and removals of entries
+ * identified by their {@linkplain AtomSource#id id}. An entry is stored as
+ * an XML fragment marshalled by JAXB, in a record with its id and CRC-32
+ * checksum. {@link #put(Entry)} and {@link #remove(String)} return after the
+ * record has been forced to the disk. Concurrent callers share a single
+ * <tt>fsync</tt> (group commit): while one thread is syncing, others append
+ * their records and then all of them are synced by the next one.</p>
+ *
+ * <p>When the journal is opened, it's read sequentially using memory-mapped
+ * windows to find the latest record of each id. A torn record at the end of
+ * the journal (after crash in the middle of a write) is truncated, as well
+ * as any records after an invalid one that had not been acknowledged. Every
+ * group commit writes a marker with the position up to which the journal
+ * had been forced before; when a marker shows that the invalid record had
+ * been acknowledged, the journal is refused rather than losing data. Then
+ * {@link #replay()} unmarshals only the live entries.</p>
+ *
+ * <p>Once the records of replaced and removed entries take more space than
+ * the live ones (and at least 1 MiB), the journal is compacted, i.e. the live
+ * records are copied into a new file that then replaces the journal. Note
+ * that the replacement relies on {@link File#renameTo(File)} overwriting the
+ * target, as it does on POSIX systems. When the automatic compaction fails,
+ * it's postponed and the failure is available via
+ * {@link #getCompactionFailure()}.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @param <T> type of entries {@link Entry#content content}
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class EntryJournal <T> {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** "ATJ" and version 1. */
+    private static final int MAGIC = 0x41544a01;
+    private static final int HEADER_SIZE = 4;
+
+    /** Length of the payload and its CRC-32. */
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /** Operation and length of the id. */
+    private static final int PAYLOAD_HEADER_SIZE = 3;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    /** Commit marker with position up to which the journal had been forced before. */
+    private static final byte OP_COMMIT = 3;
+
+    private static final long COMPACT_THRESHOLD = 1 << 20;
+    private static final long MAP_WINDOW = 64 << 20;
+
+    private final File file;
+    private final JAXBContext context;
+
+    /** Guarded by this. */
+    private RandomAccessFile raf;
+    private FileChannel channel;
+
+    /** End of the last record, guarded by this. */
+    private long position;
+
+    /** Locations of the latest put records by id, in order of position; guarded by this. */
+    private final LinkedHashMap<String, Location> live = new LinkedHashMap<String, Location>();
+
+    /** Total size of the {@link #live} records, guarded by this. */
+    private long liveBytes;
+
+    /** Lock for forcing the file; when both are needed, it must be acquired first. */
+    private final Object syncLock = new Object();
+
+    /** Position up to which the journal has been forced, guarded by {@link #syncLock}. */
+    private long syncedPosition;
+
+    /** Last failure of automatic compaction, guarded by this. */
+    private IOException compactionFailure;
+
+    /** Size of dead records to retry failed automatic compaction at, guarded by this. */
+    private long compactionRetryBytes;
+
+
+    /**
+     * Opens the journal in the given file, or creates a new one if the file
+     * doesn't exist or is empty.
+     *
+     * @param file the journal file
+     * @param context JAXB context used to marshal the entries
+     * @throws IOException if failed to open the file, it's not a journal or
+     *         it contains a corrupted record
+     */
+    public EntryJournal(File file, JAXBContext context) throws IOException {
+        this.file = file;
+        this.context = context;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        try {
+            recover();
+        } catch (IOException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+
+    /**
+     * Writes the given entry into the journal, replacing the entry with the
+     * same id, and waits until it's durable.
+     *
+     * @param entry the entry to write
+     * @throws IllegalArgumentException if the entry has no id
+     * @throws IOException if failed to write the journal
+     * @throws JAXBException if failed to marshal the entry
+     */
+    public void put(Entry<T> entry) throws IOException, JAXBException {
+        String id = entry.getId();
+        if (id == null) {
+            throw new IllegalArgumentException("Entry must have an id");
+        }
+        ByteArrayOutputStream xml = new ByteArrayOutputStream(1024);
+        Marshaller marshaller = context.createMarshaller();
+        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+        marshaller.marshal(entry, xml);
+
+        commit(append(OP_PUT, id, encode(OP_PUT, id, xml.toByteArray())));
+    }
+
+    /**
+     * Writes removal of the entry with the given id into the journal and
+     * waits until it's durable.
+     *
+     * @param id id of the entry
+     * @return whether the entry was in the journal
+     * @throws IOException if failed to write the journal
+     */
+    public boolean remove(String id) throws IOException {
+        long end = append(OP_REMOVE, id, encode(OP_REMOVE, id, new byte[0]));
+        commit(end);
+
+        return end >= 0;
+    }
+
+    /**
+     * Reads the live entries from the journal into a new feed, the most
+     * recently put first.
+     *
+     * @return feed with the entries (and no other metadata)
+     * @throws IOException if failed to read the journal
+     * @throws JAXBException if failed to unmarshal an entry
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized Feed<T> replay() throws IOException, JAXBException {
+        ensureOpen();
+
+        Unmarshaller unmarshaller = context.createUnmarshaller();
+        MappedReader reader = new MappedReader(channel, position);
+        List<Entry<T>> entries = new ArrayList<Entry<T>>(live.size());
+        byte[] buffer = new byte[4096];
+
+        // live records are in order of position, so this is a sequential read
+        for (Location location : live.values()) {
+            ByteBuffer record = reader.read(location.offset, location.length);
+            int idLength = record.getShort(record.position() + RECORD_HEADER_SIZE + 1) & 0xFFFF;
+
+            record.position(record.position() + RECORD_HEADER_SIZE + PAYLOAD_HEADER_SIZE + idLength);
+            int length = record.remaining();
+            if (buffer.length < length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            record.get(buffer, 0, length);
+
+            entries.add((Entry<T>) unmarshaller.unmarshal(new ByteArrayInputStream(buffer, 0, length)));
+        }
+        Collections.reverse(entries);
+
+        return new Feed<T>(entries);
+    }
+
+    /**
+     * Rewrites the journal with only the live records. This is done
+     * automatically when the journal contains too many dead records.
+     *
+     * @throws IOException if failed to write the new journal
+     */
+    public void compact() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                ensureOpen();
+
+                File temp = new File(file.getPath() + ".compact");
+                RandomAccessFile out = new RandomAccessFile(temp, "rw");
+                try {
+                    FileChannel target = out.getChannel();
+                    target.truncate(0);
+                    writeHeader(target);
+
+                    long[] offsets = new long[live.size()];
+                    long pos = HEADER_SIZE;
+                    int i = 0;
+                    for (Location location : live.values()) {
+                        offsets[i++] = pos;
+                        pos += transfer(location.offset, location.length, target, pos);
+                    }
+                    byte[] marker = encodeCommit(pos);
+                    writeFully(target, marker, pos);
+                    pos += marker.length;
+                    target.force(true);
+
+                    if (!temp.renameTo(file)) {
+                        throw new IOException("Failed to rename " + temp + " to " + file);
+                    }
+                    i = 0;
+                    for (Location location : live.values()) {
+                        location.offset = offsets[i++];
+                    }
+                    RandomAccessFile old = raf;
+                    raf = out;
+                    channel = target;
+                    position = pos;
+                    syncedPosition = pos;
+                    compactionFailure = null;
+                    compactionRetryBytes = 0;
+                    out = null;
+
+                    old.close();
+                } finally {
+                    if (out != null) {
+                        out.close();
+                        temp.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces and closes the journal.
+     *
+     * @throws IOException if failed to close the file
+     */
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (raf != null) {
+                    try {
+                        channel.force(false);
+                    } finally {
+                        raf.close();
+                        raf = null;
+                        channel = null;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the last failure of the automatic compaction, which is not
+     * propagated to {@link #put(Entry)} or {@link #remove(String)} (the
+     * record has been written anyway). After a failure, the compaction is
+     * retried when size of the dead records doubles.
+     *
+     * @return the failure, or null if the last compaction succeeded
+     */
+    public synchronized IOException getCompactionFailure() {
+        return compactionFailure;
+    }
+
+    /** @return number of the live entries */
+    public synchronized int size() {
+        return live.size();
+    }
+
+    /** @return size of the journal in bytes */
+    public synchronized long getLength() {
+        return position;
+    }
+
+
+
+    /**
+     * Writes the given record at the end of the journal and updates the
+     * live records.
+     *
+     * @return end of the record, or -1 if it's removal of nonexistent entry
+     */
+    private synchronized long append(byte op, String id, byte[] record) throws IOException {
+        ensureOpen();
+
+        if (op == OP_REMOVE && !live.containsKey(id)) {
+            return -1;
+        }
+        writeFully(channel, record, position);
+        if (op != OP_COMMIT) {
+            update(op, id, position, record.length);
+        }
+        position += record.length;
+
+        return position;
+    }
+
+    /**
+     * Waits until the journal is forced at least up to the given position;
+     * if no other thread is forcing it, forces all records appended so far.
+     * Then compacts the journal if needed.
+     */
+    private void commit(long end) throws IOException {
+        if (end < 0) {
+            return;
+        }
+        synchronized (syncLock) {
+            // positions are reset by compaction, but it forces all records, so
+            // at worst this forces the journal once more
+            if (syncedPosition < end) {
+                FileChannel channel;
+                long target;
+                synchronized (this) {
+                    ensureOpen();
+                    append(OP_COMMIT, "", encodeCommit(syncedPosition));
+                    channel = this.channel;
+                    target = position;
+                }
+                channel.force(false);
+                syncedPosition = target;
+            }
+        }
+        if (needsCompaction()) {
+            compactIfNeeded();
+        }
+    }
+
+    private synchronized boolean needsCompaction() {
+        long dead = position - HEADER_SIZE - liveBytes;
+        return raf != null && dead >= Math.max(COMPACT_THRESHOLD, compactionRetryBytes) && dead > liveBytes;
+    }
+
+    /**
+     * Compacts the journal if still needed; a failure is recorded instead of
+     * thrown and the next attempt is postponed.
+     */
+    private void compactIfNeeded() {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (!needsCompaction()) {
+                    return;  // compacted by another thread in the meantime
+                }
+                try {
+                    compact();
+                } catch (IOException ex) {
+                    compactionFailure = ex;
+                    compactionRetryBytes = 2 * (position - HEADER_SIZE - liveBytes);
+                }
+            }
+        }
+    }
+
+    /** Must be called with lock on this. */
+    private void update(byte op, String id, long offset, int length) {
+        // remove first to move the id at the end of the order
+        Location old = live.remove(id);
+        if (old != null) {
+            liveBytes -= old.length;
+        }
+        if (op == OP_PUT) {
+            live.put(id, new Location(offset, length));
+            liveBytes += length;
+        }
+    }
+
+    /**
+     * Reads the journal, collects the live records and truncates the
+     * unacknowledged tail after an invalid record.
+     */
+    private void recover() throws IOException {
+        long size = channel.size();
+
+        if (size == 0) {
+            writeHeader(channel);
+            channel.force(true);
+            position = syncedPosition = HEADER_SIZE;
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                break;
+            }
+        }
+
+        if (header.hasRemaining() || header.getInt(0) != MAGIC) {
+            throw new IOException("Not an entry journal or unsupported version: " + file);
+        }
+        RecordScanner scanner = new RecordScanner(new MappedReader(channel, size), size);
+        long pos = HEADER_SIZE;
+
+        while (scanner.read(pos)) {
+            if (scanner.getOp() != OP_COMMIT) {
+                update(scanner.getOp(), scanner.getId(), pos, scanner.getRecordLength());
+            }
+            pos += scanner.getRecordLength();
+        }
+        if (pos < size) {
+            // records of a group are forced at once, so after crash any of the
+            // unforced ones may be missing, not only the last one; only the
+            // records before a position stored in a commit marker had been
+            // acknowledged and must not be lost
+            long acknowledged = HEADER_SIZE;
+            for (long next = pos + 1; next < size; next++) {
+                if (scanner.read(next)) {
+                    if (scanner.getOp() == OP_COMMIT) {
+                        acknowledged = Math.max(acknowledged, scanner.getCommitted());
+                    }
+                    next += scanner.getRecordLength() - 1;
+                }
+            }
+            if (pos < acknowledged) {
+                throw new IOException("Corrupted record at offset " + pos + " in journal: " + file);
+            }
+            channel.truncate(pos);
+            channel.force(true);
+        }
+        position = syncedPosition = pos;
+    }
+
+    private long transfer(long offset, int length, FileChannel target, long targetOffset) throws IOException {
+        target.position(targetOffset);
+        long done = 0;
+        while (done < length) {
+            done += channel.transferTo(offset + done, length - done, target);
+        }
+        return done;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (raf == null) {
+            throw new IOException("Journal is closed");
+        }
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static void writeHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    /**
+     * Encodes commit marker with the given position that had been forced.
+     */
+    private static byte[] encodeCommit(long committed) {
+        return encode(OP_COMMIT, "", ByteBuffer.allocate(8).putLong(committed).array());
+    }
+
+    /**
+     * Encodes record: length of the payload (4 bytes), CRC-32 of the payload
+     * (4 bytes), and the payload: operation (1 byte), length of the id
+     * (2 bytes), the id in UTF-8 and the entry's XML (for put) or the forced
+     * position as 8 bytes (for commit marker).
+     */
+    private static byte[] encode(byte op, String id, byte[] xml) {
+        byte[] idBytes = id.getBytes(UTF_8);
+        if (idBytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Id is too long: " + id);
+        }
+        int length = PAYLOAD_HEADER_SIZE + idBytes.length + xml.length;
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        record.putInt(length).putInt(0)
+                .put(op).putShort((short) idBytes.length).put(idBytes).put(xml);
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, length);
+        record.putInt(4, (int) crc.getValue());
+
+        return record.array();
+    }
+
+
+
+    /**
+     * Location of a record in the journal.
+     */
+    private static final class Location {
+
+        long offset;
+        final int length;
+
+        Location(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Reader and validator of records, see {@link #encode(byte, String, byte[])}.
+     */
+    private static final class RecordScanner {
+
+        private final MappedReader reader;
+        private final long size;
+        private final CRC32 crc = new CRC32();
+
+        private byte[] payload = new byte[4096];
+        private int length;
+
+
+        RecordScanner(MappedReader reader, long size) {
+            this.reader = reader;
+            this.size = size;
+        }
+
+
+        /**
+         * Reads the record at the given position.
+         *
+         * @return false if there's no valid record
+         */
+        boolean read(long pos) throws IOException {
+            if (size - pos < RECORD_HEADER_SIZE) {
+                return false;
+            }
+            ByteBuffer header = reader.read(pos, RECORD_HEADER_SIZE);
+            length = header.getInt();
+            int checksum = header.getInt();
+
+            if (length < PAYLOAD_HEADER_SIZE || length > size - pos - RECORD_HEADER_SIZE) {
+                return false;
+            }
+            if (payload.length < length) {
+                payload = new byte[Math.max(length, payload.length * 2)];
+            }
+            reader.read(pos + RECORD_HEADER_SIZE, length).get(payload, 0, length);
+            crc.reset();
+            crc.update(payload, 0, length);
+
+            byte op = getOp();
+            if ((int) crc.getValue() != checksum || PAYLOAD_HEADER_SIZE + getIdLength() > length) {
+                return false;
+            }
+            return op == OP_PUT || op == OP_REMOVE
+                    || op == OP_COMMIT && length == PAYLOAD_HEADER_SIZE + 8 && getIdLength() == 0;
+        }
+
+        long getCommitted() {
+            return ByteBuffer.wrap(payload, PAYLOAD_HEADER_SIZE, 8).getLong();
+        }
+
+        byte getOp() {
+            return payload[0];
+        }
+
+        String getId() {
+            return new String(payload, PAYLOAD_HEADER_SIZE, getIdLength(), UTF_8);
+        }
+
+        int getRecordLength() {
+            return RECORD_HEADER_SIZE + length;
+        }
+
+        private int getIdLength() {
+            return (payload[1] & 0xFF) << 8 | payload[2] & 0xFF;
+        }
+    }
+
+    /**
+     * Reader of a file through read-only memory-mapped windows, intended for
+     * sequential reading.
+     */
+    private static final class MappedReader {
+
+        private final FileChannel channel;
+        private final long size;
+
+        private MappedByteBuffer window;
+        private long windowStart;
+        private long windowEnd;
+
+
+        MappedReader(FileChannel channel, long size) {
+            this.channel = channel;
+            this.size = size;
+        }
+
+
+        /**
+         * Returns a buffer with the given region of the file (the region
+         * must be within the size).
+         */
+        ByteBuffer read(long offset, int length) throws IOException {
+            if (window == null || offset < windowStart || offset + length > windowEnd) {
+                long windowSize = Math.min(Math.max(MAP_WINDOW, length), size - offset);
+                window = channel.map(FileChannel.MapMode.READ_ONLY, offset, windowSize);
+                windowStart = offset;
+                windowEnd = offset + windowSize;
+            }
+            ByteBuffer buffer = window.duplicate();
+            buffer.position((int) (offset - windowStart));
+            buffer.limit(buffer.position() + length);
+
+            return buffer;
+        }
+    }
+}
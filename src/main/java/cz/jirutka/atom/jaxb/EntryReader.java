@@ -0,0 +1,371 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.atom.jaxb;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import static cz.jirutka.atom.jaxb.Namespaces.ATOM_NS;
+import static cz.jirutka.atom.jaxb.Namespaces.XML_NS;
+import static javax.xml.stream.XMLStreamConstants.CDATA;
+import static javax.xml.stream.XMLStreamConstants.CHARACTERS;
+import static javax.xml.stream.XMLStreamConstants.END_ELEMENT;
+import static javax.xml.stream.XMLStreamConstants.SPACE;
+import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;
+
+/**
+ * Streaming reader of {@linkplain Entry Atom Entries} from a Feed (or Entry)
+ * document.
+ *
+ * <p>Besides reading each entry into a new instance ({@link #next()}), it
+ * supports a <i>recycling</i> mode ({@link #next(Entry)}), where the reader
+ * refills an entry instance owned by the caller. Its lists of links and
+ * authors, the {@linkplain AtomLink links} and {@linkplain AtomPerson persons}
+ * in them and its dates are reused, so reading a long feed entry by entry
+ * produces almost no garbage except the entries' contents, which are always
+ * unmarshalled into a new object by JAXB.</p>
+ *
+ * <p>Elements and attributes of the entry that are not mapped in
+ * {@link Entry} are skipped, the feed's metadata as well. Text constructs
+ * with markup (<tt>type="xhtml"</tt>) are read as their text content. This
+ * class is not thread-safe.</p>
+ *
+ * @param <T> type of entries {@link Entry#content content}
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class EntryReader <T> {
+
+    private final XMLStreamReader reader;
+    private final Unmarshaller unmarshaller;
+    private final Class<T> contentType;
+
+    private final StringBuilder textBuffer = new StringBuilder(256);
+
+    /** Links and persons removed from recycled entries, to be reused in the next ones. */
+    private final List<AtomLink> spareLinks = new ArrayList<AtomLink>();
+    private final List<AtomPerson> spareAuthors = new ArrayList<AtomPerson>();
+
+
+    /**
+     * Creates a reader of the given document with DTD and external entities
+     * disabled, so it's safe to read untrusted documents.
+     *
+     * @param context JAXB context that knows the entries' content type
+     * @param contentType type of entries' content
+     * @param input the document to read
+     * @throws JAXBException if failed to create an unmarshaller
+     * @throws XMLStreamException if failed to create a stream reader
+     */
+    public EntryReader(JAXBContext context, Class<T> contentType, InputStream input)
+            throws JAXBException, XMLStreamException {
+        this(createInputFactory().createXMLStreamReader(input),
+             context.createUnmarshaller(), contentType);
+    }
+
+    /**
+     * Creates a reader of entries from the given stream reader. Note that
+     * it's up to the caller to configure the stream reader securely, i.e.
+     * disable DTD and external entities when reading untrusted documents.
+     *
+     * @param reader reader of the document to read
+     * @param unmarshaller unmarshaller used for entries' content
+     * @param contentType type of entries' content, or null to skip content
+     */
+    public EntryReader(XMLStreamReader reader, Unmarshaller unmarshaller, Class<T> contentType) {
+        this.reader = reader;
+        this.unmarshaller = unmarshaller;
+        this.contentType = contentType;
+    }
+
+
+    /**
+     * Reads the next entry into a new instance.
+     *
+     * @return the entry, or null if there are no more entries
+     * @throws XMLStreamException if the document is malformed
+     * @throws JAXBException if failed to unmarshal the entry's content
+     */
+    public Entry<T> next() throws XMLStreamException, JAXBException {
+        Entry<T> entry = new Entry<T>();
+        return next(entry) ? entry : null;
+    }
+
+    /**
+     * Reads the next entry into the given instance. All its properties are
+     * overwritten and objects referenced by it (lists, links, authors and
+     * dates) are reused. Thus the caller must not hold references to them
+     * across calls of this method.
+     *
+     * @param entry the entry to fill
+     * @return true if an entry has been read, false if there are no more
+     *         entries
+     * @throws XMLStreamException if the document is malformed
+     * @throws JAXBException if failed to unmarshal the entry's content
+     */
+    public boolean next(Entry<T> entry) throws XMLStreamException, JAXBException {
+        if (!seekEntry()) {
+            return false;
+        }
+        readCommonAttributes(entry);
+        entry.setId(null);
+        entry.setTitle(null);
+        entry.setSummary(null);
+        entry.setContent(null);
+
+        List<AtomLink> links = entry.getLinks() != null ? entry.getLinks() : new ArrayList<AtomLink>();
+        List<AtomPerson> authors = entry.getAuthors() != null ? entry.getAuthors() : new ArrayList<AtomPerson>();
+        int linksCount = 0, authorsCount = 0;
+        boolean hasUpdated = false, hasPublished = false;
+
+        reader.next();
+        while (reader.getEventType() != END_ELEMENT) {
+            if (reader.getEventType() != START_ELEMENT) {
+                reader.next();
+                continue;
+            }
+            String name = ATOM_NS.equals(reader.getNamespaceURI()) ? reader.getLocalName() : "";
+
+            if (name.equals("id")) {
+                entry.setId(readText());
+            } else if (name.equals("title")) {
+                entry.setTitle(readText());
+            } else if (name.equals("summary")) {
+                entry.setSummary(readText());
+            } else if (name.equals("updated")) {
+                entry.setUpdated(readDate(entry.getUpdated()));
+                hasUpdated = true;
+            } else if (name.equals("published")) {
+                entry.setPublished(readDate(entry.getPublished()));
+                hasPublished = true;
+            } else if (name.equals("link")) {
+                AtomLink link = linksCount < links.size() ? links.get(linksCount) : null;
+                if (link == null) {
+                    link = set(links, linksCount, spareLinks.isEmpty()
+                            ? new AtomLink() : spareLinks.remove(spareLinks.size() - 1));
+                }
+                readLink(link);
+                linksCount++;
+            } else if (name.equals("author")) {
+                AtomPerson person = authorsCount < authors.size() ? authors.get(authorsCount) : null;
+                if (person == null) {
+                    person = set(authors, authorsCount, spareAuthors.isEmpty()
+                            ? new AtomPerson() : spareAuthors.remove(spareAuthors.size() - 1));
+                }
+                readPerson(person);
+                authorsCount++;
+            } else if (name.equals("content") && contentType != null) {
+                entry.setContent(unmarshaller.unmarshal(reader, contentType).getValue());
+                continue;  // unmarshaller has already moved after the end tag
+            } else {
+                skipElement();
+            }
+            reader.next();
+        }
+        truncate(links, linksCount, spareLinks);
+        truncate(authors, authorsCount, spareAuthors);
+        entry.setLinks(links);
+        entry.setAuthors(authors);
+
+        if (!hasUpdated) entry.setUpdated(null);
+        if (!hasPublished) entry.setPublished(null);
+
+        return true;
+    }
+
+    /**
+     * Closes the underlying stream reader (not the input stream).
+     *
+     * @throws XMLStreamException
+     */
+    public void close() throws XMLStreamException {
+        reader.close();
+    }
+
+
+
+    /**
+     * Moves the reader to the next atom:entry start tag.
+     */
+    private boolean seekEntry() throws XMLStreamException {
+        while (reader.hasNext()) {
+            if (reader.next() == START_ELEMENT
+                    && "entry".equals(reader.getLocalName())
+                    && ATOM_NS.equals(reader.getNamespaceURI())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void readLink(AtomLink link) throws XMLStreamException {
+        readCommonAttributes(link);
+        String href = reader.getAttributeValue(null, "href");
+
+        link.setHref(href != null ? parseURI(href) : null);
+        link.setRel(reader.getAttributeValue(null, "rel"));
+        link.setType(reader.getAttributeValue(null, "type"));
+
+        skipElement();
+    }
+
+    private void readPerson(AtomPerson person) throws XMLStreamException {
+        readCommonAttributes(person);
+        person.setName(null);
+        person.setUri(null);
+        person.setEmail(null);
+
+        reader.next();
+        while (reader.getEventType() != END_ELEMENT) {
+            if (reader.getEventType() != START_ELEMENT) {
+                reader.next();
+                continue;
+            }
+            String name = ATOM_NS.equals(reader.getNamespaceURI()) ? reader.getLocalName() : "";
+
+            if (name.equals("name")) {
+                person.setName(readText());
+            } else if (name.equals("uri")) {
+                person.setUri(parseURI(readText()));
+            } else if (name.equals("email")) {
+                person.setEmail(readText());
+            } else {
+                skipElement();
+            }
+            reader.next();
+        }
+    }
+
+    private void readCommonAttributes(CommonAttributes target) throws XMLStreamException {
+        String base = reader.getAttributeValue(XML_NS, "base");
+
+        target.setBase(base != null ? parseURI(base) : null);
+        target.setLang(reader.getAttributeValue(XML_NS, "lang"));
+    }
+
+    /**
+     * Reads text of the current element, including text of its descendants
+     * (e.g. markup of an XHTML Text construct); the reader is left on its
+     * end tag.
+     */
+    private String readText() throws XMLStreamException {
+        textBuffer.setLength(0);
+
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == START_ELEMENT) {
+                depth++;
+            } else if (event == END_ELEMENT) {
+                depth--;
+            } else if (event == CHARACTERS || event == CDATA || event == SPACE) {
+                textBuffer.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            }
+        }
+        return textBuffer.toString();
+    }
+
+    /**
+     * Reads a Date construct into the given date, if not null.
+     */
+    private Date readDate(Date date) throws XMLStreamException {
+        String text = readText().trim();
+        long time;
+        try {
+            time = DatatypeConverter.parseDateTime(text).getTimeInMillis();
+        } catch (IllegalArgumentException ex) {
+            throw new XMLStreamException("Invalid date: " + text, reader.getLocation(), ex);
+        }
+        if (date == null) {
+            return new Date(time);
+        }
+        date.setTime(time);
+        return date;
+    }
+
+    private URI parseURI(String value) throws XMLStreamException {
+        try {
+            return new URI(value.trim());
+        } catch (URISyntaxException ex) {
+            throw new XMLStreamException("Invalid URI: " + value, reader.getLocation(), ex);
+        }
+    }
+
+    /**
+     * Skips the current element including its descendants; the reader is left
+     * on its end tag.
+     */
+    private void skipElement() throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == START_ELEMENT) depth++;
+            else if (event == END_ELEMENT) depth--;
+        }
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+        return factory;
+    }
+
+    private static <E> E set(List<E> list, int index, E element) {
+        if (index < list.size()) {
+            list.set(index, element);
+        } else {
+            list.add(element);
+        }
+        return element;
+    }
+
+    /**
+     * Truncates the list to the given size and moves the removed elements
+     * to the spare ones.
+     */
+    private static <E> void truncate(List<E> list, int size, List<E> spare) {
+        if (list.size() > size) {
+            List<E> removed = list.subList(size, list.size());
+            for (E element : removed) {
+                if (element != null) {
+                    spare.add(element);
+                }
+            }
+            removed.clear();
+        }
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.atom.jaxb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Full-text index of entries for answering
+ * <a href="http://www.opensearch.org/Specifications/OpenSearch/1.1">OpenSearch</a>
+ * queries. Indexed are words of the entry's {@linkplain AtomSource#title title},
+ * {@linkplain Entry#summary summary} and {@linkplain AtomPerson#name names}
+ * of its authors.
+ *
+ * <p>The index is an inverted index; for every word it holds a sorted
+ * primitive array of the matching entries (a posting list). A query matches
+ * the entries that contain all of its words (case-insensitive), so it's
+ * just an intersection of the posting lists, starting from the shortest one.
+ * Thus the cost of a query depends on frequency of its words, not on number
+ * of the indexed entries.</p>
+ *
+ * <p>The index is maintained incrementally. Entries are identified by their
+ * {@linkplain AtomSource#id id}; {@linkplain #put(Entry) putting} an entry
+ * with the same id as an already indexed one replaces it. A replaced or
+ * {@linkplain #remove(String) removed} entry is only marked as deleted and
+ * skipped by queries, the posting lists are compacted once the deleted
+ * entries outnumber the live ones. Note that when an indexed entry is
+ * modified, it must be put again to be searchable by the new values.</p>
+ *
+ * <p>Results are ordered by the time of indexing, the most recently put
+ * first. Entries of the initial feed keep their order, i.e. the first entry
+ * is treated as the most recent one.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @param <T> type of entries {@link Entry#content content}
+ *
+ * @see <a href="http://www.opensearch.org/Specifications/OpenSearch/1.1#OpenSearch_response_elements">OpenSearch 1.1</a>
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class EntrySearchIndex <T> {
+
+    /** Minimal number of deleted entries to compact the index. */
+    private static final int COMPACT_THRESHOLD = 64;
+
+    private static final Comparator<Postings> BY_SIZE = new Comparator<Postings>() {
+        public int compare(Postings a, Postings b) {
+            return a.size - b.size;
+        }
+    };
+
+    /** Template of the result pages. */
+    private final Feed<T> template;
+
+    /** Indexed entries by doc number; deleted ones are null. */
+    private final List<Entry<T>> docs = new ArrayList<Entry<T>>();
+    private int deleted;
+
+    /** Doc numbers of the live entries by id. */
+    private final Map<String, Integer> docsById = new HashMap<String, Integer>();
+
+    /** Posting lists by term. */
+    private final Map<String, Postings> index = new HashMap<String, Postings>();
+
+
+    /**
+     * Creates an index of entries of the given feed. Other metadata of the
+     * feed (title, links, ...) are copied to the result pages.
+     *
+     * @param feed the feed to index
+     */
+    public EntrySearchIndex(Feed<T> feed) {
+        this.template = feed.withEntries(new ArrayList<Entry<T>>(0));
+
+        List<Entry<T>> entries = feed.getEntries();
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            put(entries.get(i));
+        }
+    }
+
+
+    /**
+     * Adds the given entry to the index, or replaces the indexed entry with
+     * the same {@linkplain AtomSource#id id}. An entry without id is added
+     * and cannot be replaced or removed later.
+     *
+     * @param entry the entry to index
+     */
+    public synchronized void put(Entry<T> entry) {
+        String id = entry.getId();
+        if (id != null) {
+            delete(id);
+            docsById.put(id, docs.size());
+        }
+        int doc = docs.size();
+        docs.add(entry);
+
+        for (String term : termsOf(entry)) {
+            Postings postings = index.get(term);
+            if (postings == null) {
+                postings = new Postings();
+                index.put(term, postings);
+            }
+            postings.add(doc);
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Removes the entry with the given id from the index.
+     *
+     * @param id id of the entry
+     * @return whether the entry was indexed
+     */
+    public synchronized boolean remove(String id) {
+        boolean removed = delete(id);
+        compactIfNeeded();
+
+        return removed;
+    }
+
+    /**
+     * Searches for entries that contain all words of the given search terms
+     * and returns the requested page of results as a feed with the OpenSearch
+     * elements ({@linkplain Feed#totalResults totalResults},
+     * {@linkplain Feed#startIndex startIndex} and
+     * {@linkplain Feed#itemsPerPage itemsPerPage}) filled in.
+     *
+     * @param searchTerms the query; when there are no words in it, all
+     *        entries are matched
+     * @param startIndex index of the first result to return, starting from 1
+     * @param count maximum number of results to return
+     * @return page of the results
+     */
+    public Feed<T> search(String searchTerms, int startIndex, int count) {
+        if (startIndex < 1 || count < 0) {
+            throw new IllegalArgumentException("startIndex must be positive and count non-negative");
+        }
+        List<Entry<T>> results = new ArrayList<Entry<T>>(Math.min(count, 64));
+        int total;
+
+        synchronized (this) {
+            int[] matches = match(tokenize(searchTerms));
+            total = matches.length;
+
+            // matches are in ascending order, but the most recent are first
+            int from = total - startIndex;
+            int to = (int) Math.max(from - (long) count, -1);
+            for (int i = from; i > to; i--) {
+                results.add(docs.get(matches[i]));
+            }
+        }
+        Feed<T> page = template.withEntries(results);
+        page.setTotalResults((long) total);
+        page.setStartIndex(startIndex);
+        page.setItemsPerPage(count);
+
+        return page;
+    }
+
+    /**
+     * @return number of the indexed entries
+     */
+    public synchronized int size() {
+        return docs.size() - deleted;
+    }
+
+
+
+    /**
+     * Returns doc numbers of the live entries containing all the given
+     * terms, in ascending order.
+     */
+    private int[] match(Set<String> terms) {
+        if (terms.isEmpty()) {
+            int[] result = new int[docs.size() - deleted];
+            int count = 0;
+            for (int doc = 0; doc < docs.size(); doc++) {
+                if (docs.get(doc) != null) {
+                    result[count++] = doc;
+                }
+            }
+            return result;
+        }
+        List<Postings> lists = new ArrayList<Postings>(terms.size());
+        for (String term : terms) {
+            Postings postings = index.get(term);
+            if (postings == null) {
+                return new int[0];
+            }
+            lists.add(postings);
+        }
+        Collections.sort(lists, BY_SIZE);
+
+        Postings shortest = lists.get(0);
+        int[] result = new int[shortest.size];
+        int count = 0;
+        for (int i = 0; i < shortest.size; i++) {
+            if (docs.get(shortest.docs[i]) != null) {
+                result[count++] = shortest.docs[i];
+            }
+        }
+        for (Postings postings : lists.subList(1, lists.size())) {
+            int retained = 0, from = 0;
+            for (int i = 0; i < count && from < postings.size; i++) {
+                int found = Arrays.binarySearch(postings.docs, from, postings.size, result[i]);
+                if (found >= 0) {
+                    result[retained++] = result[i];
+                    from = found + 1;
+                } else {
+                    from = -found - 1;
+                }
+            }
+            count = retained;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private boolean delete(String id) {
+        Integer doc = docsById.remove(id);
+        if (doc == null) {
+            return false;
+        }
+        docs.set(doc, null);
+        deleted++;
+
+        return true;
+    }
+
+    /**
+     * Renumbers the live entries and removes the deleted ones from the
+     * posting lists, if there's enough of them.
+     */
+    private void compactIfNeeded() {
+        if (deleted < COMPACT_THRESHOLD || deleted <= docs.size() - deleted) {
+            return;
+        }
+        // the mapping is monotonic, so the posting lists stay sorted
+        int[] renumbered = new int[docs.size()];
+        int live = 0;
+        for (int doc = 0; doc < docs.size(); doc++) {
+            Entry<T> entry = docs.get(doc);
+            renumbered[doc] = entry != null ? live : -1;
+            if (entry != null) {
+                docs.set(live++, entry);
+            }
+        }
+        docs.subList(live, docs.size()).clear();
+        deleted = 0;
+
+        for (Map.Entry<String, Integer> entry : docsById.entrySet()) {
+            entry.setValue(renumbered[entry.getValue()]);
+        }
+        for (Iterator<Postings> it = index.values().iterator(); it.hasNext(); ) {
+            Postings postings = it.next();
+            postings.renumber(renumbered);
+            if (postings.size == 0) {
+                it.remove();
+            }
+        }
+    }
+
+    private static Set<String> termsOf(Entry<?> entry) {
+        Set<String> terms = tokenize(entry.getTitle());
+        terms.addAll(tokenize(entry.getSummary()));
+
+        for (AtomPerson author : entry.getAuthors()) {
+            terms.addAll(tokenize(author.getName()));
+        }
+        return terms;
+    }
+
+    /**
+     * Splits the given text into distinct lower-cased words, i.e. sequences
+     * of letters and digits.
+     */
+    static Set<String> tokenize(String text) {
+        Set<String> words = new LinkedHashSet<String>();
+        if (text == null) {
+            return words;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); ) {
+            int ch = i < text.length() ? text.codePointAt(i) : ' ';
+
+            if (Character.isLetterOrDigit(ch)) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+            i += i < text.length() ? Character.charCount(ch) : 1;
+        }
+        return words;
+    }
+
+
+
+    /**
+     * Sorted list of doc numbers.
+     */
+    private static final class Postings {
+
+        int[] docs = new int[4];
+        int size;
+
+
+        void add(int doc) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+            }
+            docs[size++] = doc;
+        }
+
+        void renumber(int[] renumbered) {
+            int retained = 0;
+            for (int i = 0; i < size; i++) {
+                int doc = renumbered[docs[i]];
+                if (doc >= 0) {
+                    docs[retained++] = doc;
+                }
+            }
+            size = retained;
+
+            if (size < docs.length / 4) {
+                docs = Arrays.copyOf(docs, Math.max(size, 4));
+            }
+        }
+    }
+}
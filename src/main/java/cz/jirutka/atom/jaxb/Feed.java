@@ -116,6 +116,31 @@ public class Feed <T> extends AtomSource {
         this.entries.add(entry); 
     }
 
+    /**
+     * Returns a new feed with the same metadata as this one, but with the
+     * given entries. Lists of authors and links are copied, but the objects
+     * in them are shared with this feed.
+     *
+     * @param entries {@link #entries} of the new feed
+     * @return the new feed
+     */
+    public Feed<T> withEntries(List<Entry<T>> entries) {
+        Feed<T> feed = new Feed<T>(entries);
+
+        feed.setBase(getBase());
+        feed.setLang(getLang());
+        feed.setId(getId());
+        feed.setTitle(getTitle());
+        feed.setUpdated(getUpdated());
+        feed.setAuthors(new ArrayList<AtomPerson>(getAuthors()));
+        feed.setLinks(new ArrayList<AtomLink>(getLinks()));
+        feed.setStartIndex(startIndex);
+        feed.setItemsPerPage(itemsPerPage);
+        feed.setTotalResults(totalResults);
+
+        return feed;
+    }
+
     /**
      * Returns {@linkplain Entry#content contents} from all {@linkplain entries}.
      *
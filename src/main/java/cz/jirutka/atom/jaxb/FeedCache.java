@@ -0,0 +1,308 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.atom.jaxb;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+/**
+ * Cache of rendered (marshalled) {@linkplain Feed Feeds}.
+ *
+ * <p>Feeds are cached as bytes under a key chosen by the caller, typically
+ * the feed's {@linkplain AtomSource#getSelfURI() self URI}, for the given
+ * time to live. Concurrent requests for a missing or expired feed are
+ * collapsed into a single load and render (single-flight), the other
+ * requests just wait for its result. When the total size of the cached
+ * feeds exceeds the limit, the least recently used ones are evicted.</p>
+ *
+ * <p>The cached feed remembers its {@linkplain AtomSource#updated updated}
+ * date, so it can be used to answer conditional requests
+ * (<tt>If-Modified-Since</tt>).</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class FeedCache {
+
+    private final JAXBContext context;
+    private final long ttlMillis;
+    private final long maxBytes;
+
+    /** Guarded by itself; in access order, i.e. the eldest is least recently used. */
+    private final LinkedHashMap<Object, FutureTask<RenderedFeed>> slots =
+            new LinkedHashMap<Object, FutureTask<RenderedFeed>>(16, 0.75f, true);
+
+    /** Total size of the rendered feeds in {@link #slots}, guarded by {@link #slots}. */
+    private long size;
+
+
+    /**
+     * @param context JAXB context used to marshal the feeds
+     * @param ttl time to live of the cached feeds
+     * @param unit unit of the <tt>ttl</tt>
+     * @param maxBytes maximum total size of the cached feeds
+     */
+    public FeedCache(JAXBContext context, long ttl, TimeUnit unit, long maxBytes) {
+        this.context = context;
+        this.ttlMillis = unit.toMillis(ttl);
+        this.maxBytes = maxBytes;
+    }
+
+
+    /**
+     * Returns the rendered feed for the given key; if it's not cached or has
+     * expired, loads it using the given loader and renders it. When another
+     * thread is already loading the same key, this method waits for it
+     * instead of loading the feed again.
+     *
+     * @param key the cache key, e.g. the feed's self URI
+     * @param loader loader of the feed
+     * @return the rendered feed
+     * @throws ExecutionException if the loading or rendering failed, the
+     *         cause is the original exception
+     * @throws InterruptedException if interrupted while waiting for another
+     *         thread to load the feed
+     */
+    public RenderedFeed get(Object key, final Loader<?> loader)
+            throws ExecutionException, InterruptedException {
+
+        FutureTask<RenderedFeed> task;
+        boolean owner = false;
+
+        synchronized (slots) {
+            task = slots.get(key);
+
+            if (task == null || isExpired(task)) {
+                task = new FutureTask<RenderedFeed>(new Callable<RenderedFeed>() {
+                    public RenderedFeed call() throws Exception {
+                        return new RenderedFeed(loader.load(), FeedCache.this);
+                    }
+                });
+                remove(key);
+                slots.put(key, task);
+                owner = true;
+            }
+        }
+        if (owner) {
+            task.run();
+            completed(key, task);
+        }
+        try {
+            return task.get();
+        } catch (CancellationException ex) {
+            throw new ExecutionException("Loading of the feed has been cancelled", ex);
+        }
+    }
+
+    /**
+     * Removes the feed with the given key from the cache.
+     *
+     * @param key the cache key
+     */
+    public void invalidate(Object key) {
+        synchronized (slots) {
+            remove(key);
+        }
+    }
+
+    /**
+     * Removes the given feed from the cache, using its
+     * {@linkplain AtomSource#getSelfURI() self URI} as the key.
+     *
+     * @param feed the feed
+     */
+    public void invalidate(Feed<?> feed) {
+        URI key = feed.getSelfURI();
+        if (key != null) {
+            invalidate(key);
+        }
+    }
+
+    /**
+     * Removes all feeds from the cache.
+     */
+    public void clear() {
+        synchronized (slots) {
+            slots.clear();
+            size = 0;
+        }
+    }
+
+    /** @return total size of the cached feeds in bytes */
+    public long getSize() {
+        synchronized (slots) {
+            return size;
+        }
+    }
+
+
+    /**
+     * Marshals the given feed. Override this method to customize the output,
+     * e.g. to use {@link FeedWriter}.
+     *
+     * @param feed the feed to render
+     * @return the rendered feed
+     * @throws JAXBException
+     */
+    protected byte[] render(Feed<?> feed) throws JAXBException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        Marshaller marshaller = context.createMarshaller();
+
+        marshaller.marshal(feed, out);
+        return out.toByteArray();
+    }
+
+
+
+    private boolean isExpired(FutureTask<RenderedFeed> task) {
+        RenderedFeed rendered = valueOf(task);
+        return rendered != null && rendered.getExpires() <= System.currentTimeMillis();
+    }
+
+    /**
+     * Accounts the completed task or removes it if failed, then evicts the
+     * least recently used feeds over the size limit.
+     */
+    private void completed(Object key, FutureTask<RenderedFeed> task) {
+        RenderedFeed rendered = valueOf(task);
+
+        synchronized (slots) {
+            if (slots.get(key) != task) {
+                return;  // invalidated in the meantime
+            }
+            if (rendered == null) {
+                slots.remove(key);
+                return;
+            }
+            size += rendered.getBytes().length;
+
+            Iterator<Map.Entry<Object, FutureTask<RenderedFeed>>> it = slots.entrySet().iterator();
+            while (size > maxBytes && it.hasNext()) {
+                RenderedFeed eldest = valueOf(it.next().getValue());
+                if (eldest != null) {
+                    size -= eldest.getBytes().length;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /** Must be called with lock on {@link #slots}. */
+    private void remove(Object key) {
+        FutureTask<RenderedFeed> task = slots.remove(key);
+        RenderedFeed rendered = task != null ? valueOf(task) : null;
+
+        if (rendered != null) {
+            size -= rendered.getBytes().length;
+        }
+    }
+
+    /**
+     * Returns value of the task if it has completed successfully, otherwise
+     * null.
+     */
+    private static RenderedFeed valueOf(FutureTask<RenderedFeed> task) {
+        if (!task.isDone()) {
+            return null;
+        }
+        try {
+            return task.get();
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+
+
+    /**
+     * Loads the feed to be cached.
+     *
+     * @param <T> type of entries' content
+     */
+    public interface Loader <T> {
+
+        /**
+         * @return the feed
+         * @throws Exception
+         */
+        Feed<T> load() throws Exception;
+    }
+
+    /**
+     * A feed rendered to bytes.
+     */
+    public static final class RenderedFeed {
+
+        private final byte[] bytes;
+        private final Date updated;
+        private final long expires;
+
+
+        RenderedFeed(Feed<?> feed, FeedCache cache) throws JAXBException {
+            this.bytes = cache.render(feed);
+            this.updated = feed.getUpdated() != null ? new Date(feed.getUpdated().getTime()) : null;
+            this.expires = System.currentTimeMillis() + cache.ttlMillis;
+        }
+
+
+        /**
+         * Returns whether the feed has been updated after the given date
+         * (e.g. from <tt>If-Modified-Since</tt>), with precision to seconds
+         * as used in HTTP dates. A feed without
+         * {@linkplain AtomSource#updated updated} is always considered as
+         * modified.
+         *
+         * @param since the date, or null
+         * @return true if modified or the date is null
+         */
+        public boolean isModifiedSince(Date since) {
+            if (since == null || updated == null) {
+                return true;
+            }
+            return updated.getTime() / 1000 > since.getTime() / 1000;
+        }
+
+        /** @return the marshalled feed (do not modify) */
+        public byte[] getBytes() { return bytes; }
+
+        /** @return {@link AtomSource#updated} of the feed, or null */
+        public Date getUpdated() { return updated != null ? new Date(updated.getTime()) : null; }
+
+        /** @return time (in epoch millis) when this feed expires from the cache */
+        public long getExpires() { return expires; }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.atom.jaxb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Merges multiple {@linkplain Feed Feeds} (or iterators of entries) into
+ * a single sequence ordered by {@linkplain AtomSource#updated updated},
+ * newest first.
+ *
+ * <p>This is a streaming k-way merge; each source must be already ordered
+ * newest first (as feeds usually are). Only the head of each source is kept
+ * in a heap, so merging <i>k</i> sources costs <i>O(n log k)</i> for
+ * <i>n</i> consumed entries and with a limit it stops as soon as enough
+ * entries are produced, without touching the rest of the sources.</p>
+ *
+ * <p>Entries without <tt>updated</tt> are considered older than any other
+ * entry. Entries with the same <tt>updated</tt> are taken in the order of
+ * their sources.</p>
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public final class FeedMerger {
+
+    /**
+     * Compares feeds or entries by {@linkplain AtomSource#updated updated},
+     * newest first; nulls are last.
+     */
+    public static final Comparator<AtomSource> NEWEST_FIRST = new Comparator<AtomSource>() {
+        public int compare(AtomSource o1, AtomSource o2) {
+            Date d1 = o1.getUpdated(), d2 = o2.getUpdated();
+
+            if (d1 == d2) return 0;
+            if (d1 == null) return 1;
+            if (d2 == null) return -1;
+            return d2.compareTo(d1);
+        }
+    };
+
+    private FeedMerger() {}
+
+
+    /**
+     * Merges entries of the given feeds into a new feed.
+     *
+     * @param feeds the feeds to merge, each ordered newest first
+     * @param limit maximum number of entries to take, or a negative number
+     *              for no limit
+     * @param distinct whether to skip entries with an {@linkplain AtomSource#id id}
+     *                 that has been already taken (i.e. keep the newest one)
+     * @return a new feed with the merged entries and no other metadata
+     */
+    public static <T> Feed<T> merge(Collection<? extends Feed<T>> feeds, int limit, boolean distinct) {
+        List<Iterator<Entry<T>>> sources = new ArrayList<Iterator<Entry<T>>>(feeds.size());
+        long total = 0;
+        for (Feed<T> feed : feeds) {
+            sources.add(feed.getEntries().iterator());
+            total += feed.getEntries().size();
+        }
+        Iterator<Entry<T>> merged = iterator(sources, limit, distinct);
+
+        List<Entry<T>> entries = new ArrayList<Entry<T>>((int) (limit >= 0 ? Math.min(limit, total) : total));
+        while (merged.hasNext()) {
+            entries.add(merged.next());
+        }
+        return new Feed<T>(entries);
+    }
+
+    /**
+     * Returns a lazy iterator that merges the given sources of entries.
+     * The sources are advanced only as far as needed.
+     *
+     * @param sources iterators of entries, each ordered newest first
+     * @param limit maximum number of entries to return, or a negative number
+     *              for no limit
+     * @param distinct whether to skip entries with an {@linkplain AtomSource#id id}
+     *                 that has been already returned (i.e. keep the newest one)
+     * @return iterator of the merged entries (does not support remove)
+     */
+    public static <T> Iterator<Entry<T>> iterator(Collection<? extends Iterator<Entry<T>>> sources,
+                                                  int limit, boolean distinct) {
+        return new MergingIterator<T>(sources, limit, distinct);
+    }
+
+
+
+    private static final class MergingIterator<T> implements Iterator<Entry<T>> {
+
+        private final PriorityQueue<Cursor<T>> heap;
+        private final Set<String> seenIds;
+        private int remaining;
+        private Entry<T> next;
+
+
+        MergingIterator(Collection<? extends Iterator<Entry<T>>> sources, int limit, boolean distinct) {
+            this.heap = new PriorityQueue<Cursor<T>>(Math.max(sources.size(), 1));
+            this.seenIds = distinct ? new HashSet<String>() : null;
+            this.remaining = limit < 0 ? Integer.MAX_VALUE : limit;
+
+            int order = 0;
+            for (Iterator<Entry<T>> source : sources) {
+                if (source.hasNext()) {
+                    heap.add(new Cursor<T>(source, order++));
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            while (next == null && remaining > 0 && !heap.isEmpty()) {
+                Cursor<T> cursor = heap.poll();
+                Entry<T> entry = cursor.head;
+
+                if (cursor.advance()) {
+                    heap.add(cursor);
+                }
+                if (seenIds != null && entry.getId() != null && !seenIds.add(entry.getId())) {
+                    continue;
+                }
+                next = entry;
+                remaining--;
+            }
+            return next != null;
+        }
+
+        public Entry<T> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry<T> entry = next;
+            next = null;
+            return entry;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static final class Cursor<T> implements Comparable<Cursor<T>> {
+
+        private final Iterator<Entry<T>> source;
+        private final int order;
+        private Entry<T> head;
+
+
+        Cursor(Iterator<Entry<T>> source, int order) {
+            this.source = source;
+            this.order = order;
+            this.head = source.next();
+        }
+
+        boolean advance() {
+            head = source.hasNext() ? source.next() : null;
+            return head != null;
+        }
+
+        public int compareTo(Cursor<T> other) {
+            int result = NEWEST_FIRST.compare(head, other.head);
+            return result != 0 ? result : order - other.order;
+        }
+    }
+}
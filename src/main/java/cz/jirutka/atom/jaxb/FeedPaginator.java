@@ -0,0 +1,305 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.atom.jaxb;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.MarshalException;
+import javax.xml.bind.Marshaller;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Splits entries of a {@linkplain Feed} into pages, i.e. feeds ready to
+ * serve with the OpenSearch elements ({@linkplain Feed#startIndex startIndex},
+ * {@linkplain Feed#itemsPerPage itemsPerPage} and
+ * {@linkplain Feed#totalResults totalResults}) and links
+ * {@linkplain AtomLink#SELF self}, {@linkplain AtomLink#PREV prev} and
+ * {@linkplain AtomLink#NEXT next} filled in. Other metadata of the pages are
+ * copied from the source feed.
+ *
+ * <p>The size of pages is limited either by number of entries, or by size
+ * of the page written by {@link FeedWriter} in bytes. In the latter case,
+ * every page contains as many entries as fit into the limit, but at least
+ * one.</p>
+ *
+ * <p>The pages are built lazily and cached. When entries of the source feed
+ * are modified, call {@link #entriesChanged(int)} with index of the first
+ * changed entry; only pages from that point on are rebuilt.</p>
+ *
+ * <p>This class is thread-safe as long as the source feed is not modified
+ * concurrently with it.</p>
+ *
+ * @param <T> type of entries {@link Entry#content content}
+ *
+ * @see <a href="http://www.opensearch.org/Specifications/OpenSearch/1.1#OpenSearch_response_elements">OpenSearch 1.1</a>
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class FeedPaginator <T> {
+
+    private final Feed<T> source;
+    private final PageLinks links;
+
+    /** Maximum number of entries per page, or 0 when limited by size. */
+    private final int maxEntries;
+
+    /** Maximum size of page in bytes, or 0 when limited by number of entries. */
+    private final long maxBytes;
+    private final FeedWriter writer;
+
+    /** Indexes of the first entry of pages; the last one is end of the last computed page. */
+    private int[] starts = new int[16];
+    private int startsCount = 1;
+
+    /** Sizes of entries written by {@link #writer}. */
+    private int[] sizes = new int[16];
+    private int sizesCount;
+
+    private final List<Feed<T>> pages = new ArrayList<Feed<T>>();
+
+
+    private FeedPaginator(Feed<T> source, PageLinks links, int maxEntries, long maxBytes, FeedWriter writer) {
+        this.source = source;
+        this.links = links;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.writer = writer;
+    }
+
+    /**
+     * Creates a paginator with pages limited by number of entries.
+     *
+     * @param source the feed to paginate
+     * @param entriesPerPage maximum number of entries per page
+     * @param links builder of the pages' URIs
+     * @return the paginator
+     */
+    public static <T> FeedPaginator<T> byCount(Feed<T> source, int entriesPerPage, PageLinks links) {
+        if (entriesPerPage <= 0) {
+            throw new IllegalArgumentException("entriesPerPage must be positive");
+        }
+        return new FeedPaginator<T>(source, links, entriesPerPage, 0, null);
+    }
+
+    /**
+     * Creates a paginator with pages limited by size in bytes.
+     *
+     * @param source the feed to paginate
+     * @param maxBytes maximum size of page written by the writer
+     * @param writer the writer used to serve pages
+     * @param links builder of the pages' URIs
+     * @return the paginator
+     */
+    public static <T> FeedPaginator<T> bySize(Feed<T> source, long maxBytes, FeedWriter writer, PageLinks links) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        return new FeedPaginator<T>(source, links, 0, maxBytes, writer);
+    }
+
+
+    /**
+     * Returns the page with the given number.
+     *
+     * @param page number of the page, starting from 1
+     * @return the page
+     * @throws IndexOutOfBoundsException if there's no such page
+     * @throws JAXBException if failed to write entries to measure their size
+     */
+    public synchronized Feed<T> getPage(int page) throws JAXBException {
+        int index = page - 1;
+        if (index < 0 || !exists(index)) {
+            throw new IndexOutOfBoundsException("No such page: " + page);
+        }
+        Feed<T> feed = index < pages.size() ? pages.get(index) : null;
+        long total = source.getEntries().size();
+
+        if (feed == null) {
+            feed = createPage(index, starts[index], starts[index + 1], exists(index + 1));
+        } else if (feed.getTotalResults() != total) {
+            // don't modify the page that might have been already returned
+            feed = feed.withEntries(feed.getEntries());
+            feed.setTotalResults(total);
+        } else {
+            return feed;
+        }
+        while (pages.size() <= index) {
+            pages.add(null);
+        }
+        pages.set(index, feed);
+
+        return feed;
+    }
+
+    /**
+     * @return number of pages (at least 1)
+     * @throws JAXBException if failed to write entries to measure their size
+     */
+    public synchronized int getPageCount() throws JAXBException {
+        int count = 1;
+        while (exists(count)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Invalidates pages affected by change of the source feed's entries, i.e.
+     * entries added, removed or replaced starting at the given index.
+     *
+     * @param index index of the first changed entry
+     */
+    public synchronized void entriesChanged(int index) {
+        sizesCount = Math.min(sizesCount, index);
+
+        // previous page may end with the changed entry or may fit it now
+        int entry = Math.max(index - 1, 0);
+        int page = 0;
+        while (page + 1 < startsCount && starts[page + 1] <= entry) {
+            page++;
+        }
+        startsCount = page + 1;
+
+        if (pages.size() > page) {
+            pages.subList(page, pages.size()).clear();
+        }
+    }
+
+    /**
+     * Invalidates all pages.
+     */
+    public void invalidate() {
+        entriesChanged(0);
+    }
+
+
+
+    /**
+     * Computes boundaries of pages up to the given one (0-based) and returns
+     * whether it exists.
+     */
+    private boolean exists(int page) throws JAXBException {
+        int total = source.getEntries().size();
+
+        while (startsCount <= page + 1) {
+            int start = starts[startsCount - 1];
+            if (startsCount > 1 && start >= total) {
+                break;
+            }
+            int end = maxEntries > 0
+                    ? (int) Math.min((long) start + maxEntries, total)
+                    : fitBySize(startsCount - 1, start, total);
+
+            if (startsCount == starts.length) {
+                starts = Arrays.copyOf(starts, starts.length * 2);
+            }
+            starts[startsCount++] = end;
+        }
+        return page + 1 < startsCount && (page == 0 || starts[page] < total);
+    }
+
+    /**
+     * Returns end index of the page with the given start, so the page is not
+     * bigger than {@link #maxBytes}.
+     */
+    private int fitBySize(int page, int start, int total) throws JAXBException {
+        Marshaller marshaller = writer.createMarshaller(true);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+
+        // size of the page without entries; with itemsPerPage and next link
+        // as if it's the biggest page possible
+        Feed<T> envelope = createPage(page, start, start, true);
+        envelope.setItemsPerPage(total - start);
+        long size = write(envelope, buffer);
+
+        int end = start;
+        while (end < total) {
+            if (end >= sizesCount) {
+                if (sizesCount == sizes.length) {
+                    sizes = Arrays.copyOf(sizes, sizes.length * 2);
+                }
+                buffer.reset();
+                writer.writeEntry(source.getEntries().get(sizesCount), source, marshaller, buffer);
+                sizes[sizesCount++] = buffer.size();
+            }
+            if (end > start && size + sizes[end] > maxBytes) {
+                break;
+            }
+            size += sizes[end++];
+        }
+        return end;
+    }
+
+    private Feed<T> createPage(int page, int start, int end, boolean hasNext) {
+        List<Entry<T>> entries = source.getEntries().subList(start, end);
+        Feed<T> feed = source.withEntries(new ArrayList<Entry<T>>(entries));
+
+        for (Iterator<AtomLink> it = feed.getLinks().iterator(); it.hasNext(); ) {
+            String rel = it.next().getRel();
+            if (AtomLink.SELF.equals(rel) || AtomLink.PREV.equals(rel) || AtomLink.NEXT.equals(rel)) {
+                it.remove();
+            }
+        }
+        feed.addLink(AtomLink.SELF, links.getPageURI(page + 1));
+        if (page > 0) {
+            feed.addLink(AtomLink.PREV, links.getPageURI(page));
+        }
+        if (hasNext) {
+            feed.addLink(AtomLink.NEXT, links.getPageURI(page + 2));
+        }
+        feed.setStartIndex(start + 1);
+        feed.setItemsPerPage(maxEntries > 0 ? maxEntries : end - start);
+        feed.setTotalResults((long) source.getEntries().size());
+
+        return feed;
+    }
+
+    private int write(Feed<T> feed, ByteArrayOutputStream buffer) throws JAXBException {
+        buffer.reset();
+        try {
+            writer.write(feed, buffer);
+        } catch (XMLStreamException ex) {
+            throw new MarshalException(ex);
+        }
+        return buffer.size();
+    }
+
+
+
+    /**
+     * Builds URIs of pages for the {@linkplain AtomLink links}.
+     */
+    public interface PageLinks {
+
+        /**
+         * @param page number of the page, starting from 1
+         * @return URI of the page
+         */
+        URI getPageURI(int page);
+    }
+}
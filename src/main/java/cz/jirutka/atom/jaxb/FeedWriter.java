@@ -0,0 +1,329 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.atom.jaxb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.MarshalException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.SchemaOutputResolver;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.Result;
+import javax.xml.transform.stream.StreamResult;
+
+import static cz.jirutka.atom.jaxb.Namespaces.ATOM_NS;
+import static cz.jirutka.atom.jaxb.Namespaces.OPENSEARCH_NS;
+import static cz.jirutka.atom.jaxb.Namespaces.XML_NS;
+import static javax.xml.XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI;
+
+/**
+ * Writer of {@linkplain Feed Feeds} in a compact form, intended for feeds
+ * served at high volume.
+ *
+ * <p>Unlike plain {@link Marshaller}, it declares all known namespaces only
+ * once on the root element with fixed prefixes (Atom as the default
+ * namespace, <tt>opensearch</tt> for {@link Namespaces#OPENSEARCH_NS} and
+ * <tt>xsi</tt> for XML Schema instance, used for type of the entries'
+ * content), instead of repeating them on nested elements. Namespaces of the
+ * entries' content known to the JAXB context are declared there as well,
+ * with prefixes <tt>ns1</tt>, <tt>ns2</tt>, ... that can be changed using
+ * {@link #declareNamespace(String, String)}. Furthermore <tt>xml:lang</tt>
+ * and <tt>xml:base</tt> attributes that are the same as the inherited ones
+ * are omitted and the output is not formatted (no whitespace between
+ * elements).</p>
+ *
+ * <p>Entries of big feeds can be marshalled in parallel, see
+ * {@link #write(Feed, OutputStream, Executor)}.</p>
+ *
+ * <p>Once configured, this class is thread-safe.</p>
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class FeedWriter {
+
+    private static final String ENCODING = "UTF-8";
+
+    private final JAXBContext context;
+    private final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+    /** Fixed namespaces; prefix -> namespace URI. */
+    private final Map<String, String> namespaces = new LinkedHashMap<String, String>();
+
+    private volatile int chunkSize = 64;
+
+
+    /**
+     * @param context JAXB context used to marshal the feeds
+     */
+    public FeedWriter(JAXBContext context) {
+        this.context = context;
+
+        namespaces.put("", ATOM_NS);
+        namespaces.put("opensearch", OPENSEARCH_NS);
+        namespaces.put("xsi", W3C_XML_SCHEMA_INSTANCE_NS_URI);
+
+        int n = 1;
+        for (String namespaceURI : collectNamespaces(context)) {
+            if (!namespaces.containsValue(namespaceURI)) {
+                namespaces.put("ns" + n++, namespaceURI);
+            }
+        }
+    }
+
+
+    /**
+     * Sets prefix of a namespace declared on the root element, instead of the
+     * generated one (<tt>ns1</tt>, <tt>ns2</tt>, ...). If the namespace is
+     * not known to the JAXB context, it's added.
+     *
+     * @param prefix the prefix (must not be empty)
+     * @param namespaceURI the namespace URI
+     * @return this
+     * @throws IllegalArgumentException if the prefix is already used for
+     *         another namespace, or the namespace is a fixed one (Atom,
+     *         OpenSearch or XML Schema instance)
+     */
+    public FeedWriter declareNamespace(String prefix, String namespaceURI) {
+        String current = namespaces.get(prefix);
+        if (prefix.length() == 0 || current != null && !current.equals(namespaceURI)
+                || ATOM_NS.equals(namespaceURI) || OPENSEARCH_NS.equals(namespaceURI)
+                || W3C_XML_SCHEMA_INSTANCE_NS_URI.equals(namespaceURI)) {
+            throw new IllegalArgumentException("Prefix or namespace is already declared: " + prefix);
+        }
+        // replace the prefix, keeping order of the declarations
+        Map<String, String> declared = new LinkedHashMap<String, String>(namespaces);
+        namespaces.clear();
+        for (Map.Entry<String, String> e : declared.entrySet()) {
+            if (!e.getValue().equals(namespaceURI)) {
+                namespaces.put(e.getKey(), e.getValue());
+            } else {
+                namespaces.put(prefix, namespaceURI);
+            }
+        }
+        if (!namespaces.containsKey(prefix)) {
+            namespaces.put(prefix, namespaceURI);
+        }
+        return this;
+    }
+
+    /**
+     * Writes the given feed as a document in UTF-8.
+     *
+     * @param feed the feed to write
+     * @param out the stream to write to (it's not closed)
+     * @throws JAXBException if failed to marshal the feed
+     * @throws XMLStreamException if failed to write the output
+     */
+    public void write(Feed<?> feed, OutputStream out) throws JAXBException, XMLStreamException {
+        XMLStreamWriter writer = new CompactStreamWriter(
+                outputFactory.createXMLStreamWriter(out, ENCODING), ENCODING, namespaces);
+
+        createMarshaller(false).marshal(feed, writer);
+        writer.flush();
+    }
+
+    /**
+     * Writes the given feed as a document in UTF-8, marshalling its entries
+     * in parallel using the given executor. Entries are split into chunks of
+     * {@linkplain #setChunkSize(int) chunk size}, each chunk is marshalled
+     * into a separate buffer and the buffers are written in the original
+     * order into the feed. The output is exactly the same as from
+     * {@link #write(Feed, OutputStream)}.
+     *
+     * <p>Note that the rendered chunks are held in memory until written, so
+     * the memory needed is up to the size of the output.</p>
+     *
+     * @param feed the feed to write
+     * @param out the stream to write to (it's not closed)
+     * @param executor the executor to marshal chunks of entries
+     * @throws JAXBException if failed to marshal the feed
+     * @throws XMLStreamException if failed to write the output
+     */
+    public void write(Feed<?> feed, final OutputStream out, Executor executor)
+            throws JAXBException, XMLStreamException {
+
+        final List<? extends Entry<?>> entries = feed.getEntries();
+        int chunkSize = this.chunkSize;
+
+        if (entries.size() <= chunkSize) {
+            write(feed, out);
+            return;
+        }
+        final List<FutureTask<byte[]>> chunks = new ArrayList<FutureTask<byte[]>>();
+        final Feed<?> scope = feed;
+
+        CompactStreamWriter writer = new CompactStreamWriter(
+                outputFactory.createXMLStreamWriter(out, ENCODING), ENCODING, namespaces);
+
+        writer.setEntriesWriter(new CompactStreamWriter.EntriesWriter() {
+            public void writeEntries() throws XMLStreamException {
+                for (FutureTask<byte[]> chunk : chunks) {
+                    try {
+                        out.write(chunk.get());
+                    } catch (ExecutionException ex) {
+                        throw new XMLStreamException("Failed to marshal entries", ex.getCause());
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new XMLStreamException("Interrupted while marshalling entries", ex);
+                    } catch (IOException ex) {
+                        throw new XMLStreamException(ex);
+                    }
+                }
+            }
+        });
+        try {
+            for (int i = 0; i < entries.size(); i += chunkSize) {
+                final int from = i, to = Math.min(i + chunkSize, entries.size());
+
+                FutureTask<byte[]> chunk = new FutureTask<byte[]>(new Callable<byte[]>() {
+                    public byte[] call() throws JAXBException {
+                        ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+                        Marshaller marshaller = createMarshaller(true);
+
+                        for (Entry<?> entry : entries.subList(from, to)) {
+                            writeEntry(entry, scope, marshaller, buffer);
+                        }
+                        return buffer.toByteArray();
+                    }
+                });
+                chunks.add(chunk);
+                executor.execute(chunk);
+            }
+            createMarshaller(false).marshal(envelopeOf(feed), writer);
+            writer.flush();
+        } finally {
+            for (FutureTask<byte[]> chunk : chunks) {
+                chunk.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Writes the given feed as a document in UTF-8.
+     *
+     * @param feed the feed to write
+     * @return the written feed
+     * @throws JAXBException if failed to marshal the feed
+     * @throws XMLStreamException if failed to write the output
+     */
+    public byte[] toByteArray(Feed<?> feed) throws JAXBException, XMLStreamException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        write(feed, out);
+
+        return out.toByteArray();
+    }
+
+
+
+    /**
+     * Sets number of entries marshalled in one task by
+     * {@link #write(Feed, OutputStream, Executor)}. Default is 64.
+     *
+     * @param chunkSize number of entries per task
+     * @return this
+     */
+    public FeedWriter setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+
+
+    /**
+     * Writes the given entry as a fragment of the given feed, i.e. in scope
+     * of its namespaces, xml:lang and xml:base. The fragment is exactly the
+     * same as when written inside the feed.
+     */
+    void writeEntry(Entry<?> entry, Feed<?> feed, Marshaller marshaller, OutputStream out)
+            throws JAXBException {
+        try {
+            XMLStreamWriter writer = new CompactStreamWriter(
+                    outputFactory.createXMLStreamWriter(out, ENCODING), ENCODING, namespaces,
+                    feed.getLang(), feed.getBase());
+
+            marshaller.marshal(entry, writer);
+            writer.flush();
+        } catch (XMLStreamException ex) {
+            throw new MarshalException(ex);
+        }
+    }
+
+    /**
+     * Returns target namespaces of the schema generated for the given
+     * context, i.e. namespaces of all its elements, attributes and types,
+     * in a stable order. If the context doesn't support generating schema,
+     * returns no namespaces; they will be declared where used.
+     */
+    private static Set<String> collectNamespaces(JAXBContext context) {
+        final Set<String> collected = new TreeSet<String>();
+        try {
+            context.generateSchema(new SchemaOutputResolver() {
+                public Result createOutput(String namespaceURI, String suggestedFileName) {
+                    if (namespaceURI.length() > 0 && !XML_NS.equals(namespaceURI)) {
+                        collected.add(namespaceURI);
+                    }
+                    Result result = new StreamResult(new ByteArrayOutputStream());
+                    result.setSystemId(suggestedFileName);
+                    return result;
+                }
+            });
+        } catch (IOException ex) {
+            collected.clear();
+        } catch (UnsupportedOperationException ex) {
+            collected.clear();
+        }
+        return collected;
+    }
+
+    private static <T> Feed<T> envelopeOf(Feed<T> feed) {
+        return feed.withEntries(new ArrayList<Entry<T>>(0));
+    }
+
+    Marshaller createMarshaller(boolean fragment) throws JAXBException {
+        Marshaller marshaller = context.createMarshaller();
+
+        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, false);
+        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, fragment);
+
+        return marshaller;
+    }
+}
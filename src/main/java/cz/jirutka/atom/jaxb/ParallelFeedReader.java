@@ -0,0 +1,473 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.atom.jaxb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.UnmarshalException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import static cz.jirutka.atom.jaxb.Namespaces.ATOM_NS;
+import static javax.xml.stream.XMLStreamConstants.END_DOCUMENT;
+import static javax.xml.stream.XMLStreamConstants.END_ELEMENT;
+import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;
+
+/**
+ * Reader of big {@linkplain Feed Feed} documents that unmarshals entries in
+ * parallel.
+ *
+ * <p>The document is first quickly scanned for boundaries of the atom:entry
+ * elements (without parsing). Then chunks of entries are unmarshalled on the
+ * given executor, each in scope of the root element (i.e. with its namespace
+ * declarations), and the feed itself is unmarshalled from the rest of the
+ * document. The entries are put into the feed in their original order, so
+ * the result is the same as from plain {@link Unmarshaller}.</p>
+ *
+ * <p>The scan works only for documents in an ASCII compatible encoding
+ * (e.g. UTF-8 or ISO-8859-*) and without DOCTYPE (i.e. no custom entities),
+ * other documents are unmarshalled sequentially.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class ParallelFeedReader {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final Pattern XML_DECLARATION_ENCODING =
+            Pattern.compile("^<\\?xml[^>]+encoding\\s*=\\s*[\"']([A-Za-z0-9._-]+)[\"']");
+
+    private static final Pattern ASCII_COMPATIBLE_ENCODING =
+            Pattern.compile("(?i)UTF-?8|(US-)?ASCII|ISO-?8859-\\d+|(WINDOWS|CP)-?125\\d");
+
+    private final JAXBContext context;
+    private volatile int chunkSize = 64;
+
+
+    /**
+     * @param context JAXB context that knows the entries' content type
+     */
+    public ParallelFeedReader(JAXBContext context) {
+        this.context = context;
+    }
+
+
+    /**
+     * Reads the given file; see {@link #read(byte[], Executor)}.
+     *
+     * @param file the feed document
+     * @param executor the executor to unmarshal chunks of entries
+     * @return the feed
+     * @throws IOException if failed to read the file
+     * @throws JAXBException if failed to unmarshal the feed
+     */
+    public <T> Feed<T> read(File file, Executor executor) throws IOException, JAXBException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            if (input.length() > Integer.MAX_VALUE) {
+                throw new IOException("File is too big: " + file);
+            }
+            byte[] document = new byte[(int) input.length()];
+            input.readFully(document);
+
+            return read(document, executor);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Reads the given stream; see {@link #read(byte[], Executor)}.
+     *
+     * @param input the feed document (it's not closed)
+     * @param executor the executor to unmarshal chunks of entries
+     * @return the feed
+     * @throws IOException if failed to read the stream
+     * @throws JAXBException if failed to unmarshal the feed
+     */
+    public <T> Feed<T> read(InputStream input, Executor executor) throws IOException, JAXBException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+        byte[] bytes = new byte[8192];
+
+        for (int n; (n = input.read(bytes)) != -1; ) {
+            buffer.write(bytes, 0, n);
+        }
+        return read(buffer.toByteArray(), executor);
+    }
+
+    /**
+     * Reads the given feed document, unmarshalling chunks of its entries in
+     * parallel using the given executor.
+     *
+     * @param document the feed document
+     * @param executor the executor to unmarshal chunks of entries
+     * @return the feed
+     * @throws JAXBException if failed to unmarshal the feed
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Feed<T> read(final byte[] document, Executor executor) throws JAXBException {
+        int chunkSize = this.chunkSize;
+        String encoding = detectEncoding(document);
+        Scan scan = encoding != null ? Scan.of(document) : null;
+
+        if (scan == null || scan.entries.size() <= chunkSize) {
+            return (Feed<T>) context.createUnmarshaller().unmarshal(new ByteArrayInputStream(document));
+        }
+        List<FutureTask<List<Entry<T>>>> chunks = new ArrayList<FutureTask<List<Entry<T>>>>();
+        try {
+            for (int i = 0; i < scan.entries.size(); i += chunkSize) {
+                int[] first = scan.entries.get(i);
+                int[] last = scan.entries.get(Math.min(i + chunkSize, scan.entries.size()) - 1);
+
+                FutureTask<List<Entry<T>>> chunk = new FutureTask<List<Entry<T>>>(
+                        this.<T>entriesReader(scan.wrap(first[0], last[1]), encoding));
+                chunks.add(chunk);
+                executor.execute(chunk);
+            }
+            Feed<T> feed = (Feed<T>) context.createUnmarshaller().unmarshal(scan.withoutEntries());
+
+            List<Entry<T>> entries = new ArrayList<Entry<T>>(scan.entries.size());
+            for (FutureTask<List<Entry<T>>> chunk : chunks) {
+                entries.addAll(chunk.get());
+            }
+            feed.setEntries(entries);
+
+            return feed;
+
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof JAXBException) {
+                throw (JAXBException) ex.getCause();
+            }
+            throw new UnmarshalException(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new UnmarshalException(ex);
+        } finally {
+            for (FutureTask<?> chunk : chunks) {
+                chunk.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Sets number of entries unmarshalled in one task. Default is 64.
+     *
+     * @param chunkSize number of entries per task
+     * @return this
+     */
+    public ParallelFeedReader setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+
+
+    /**
+     * Creates a task that unmarshals all atom:entry children of the root
+     * element in the given document.
+     */
+    private <T> Callable<List<Entry<T>>> entriesReader(final InputStream input, final String encoding) {
+        return new Callable<List<Entry<T>>>() {
+
+            @SuppressWarnings("unchecked")
+            public List<Entry<T>> call() throws JAXBException, XMLStreamException {
+                Unmarshaller unmarshaller = context.createUnmarshaller();
+                XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(input, encoding);
+                List<Entry<T>> entries = new ArrayList<Entry<T>>();
+                try {
+                    reader.nextTag();  // root
+
+                    for (int depth = 1, event = reader.next(); event != END_DOCUMENT && depth > 0; ) {
+                        if (event == START_ELEMENT && depth == 1 && "entry".equals(reader.getLocalName())
+                                && ATOM_NS.equals(reader.getNamespaceURI())) {
+                            entries.add(unmarshaller.unmarshal(reader, Entry.class).getValue());
+                            event = reader.getEventType();  // unmarshaller moved after the entry
+                            continue;
+                        }
+                        if (event == START_ELEMENT) depth++;
+                        else if (event == END_ELEMENT) depth--;
+                        event = reader.next();
+                    }
+                } finally {
+                    reader.close();
+                }
+                return entries;
+            }
+        };
+    }
+
+    /**
+     * Returns encoding of the document if it's ASCII compatible, or null.
+     */
+    private static String detectEncoding(byte[] document) {
+        if (document.length >= 3 && (document[0] & 0xFF) == 0xEF
+                && (document[1] & 0xFF) == 0xBB && (document[2] & 0xFF) == 0xBF) {
+            return "UTF-8";
+        }
+        if (document.length < 2 || document[0] != '<' || document[1] == 0) {
+            return null;  // UTF-16, UTF-32, whitespace before declaration or something weird
+        }
+        String head = new String(document, 0, Math.min(document.length, 200), ASCII);
+        Matcher matcher = XML_DECLARATION_ENCODING.matcher(head);
+
+        if (!matcher.find()) {
+            return "UTF-8";
+        }
+        String encoding = matcher.group(1);
+        return ASCII_COMPATIBLE_ENCODING.matcher(encoding).matches() ? encoding : null;
+    }
+
+
+
+    /**
+     * Result of scanning the document for entries.
+     */
+    private static final class Scan {
+
+        final byte[] document;
+
+        /** Start (inclusive) and end (exclusive) offsets of the entries. */
+        final List<int[]> entries = new ArrayList<int[]>();
+
+        int rootStart, rootEnd;
+        String rootName;
+
+
+        private Scan(byte[] document) {
+            this.document = document;
+        }
+
+        /**
+         * Scans the given document, returns null if it can't be scanned
+         * reliably.
+         */
+        static Scan of(byte[] doc) {
+            Scan scan = new Scan(doc);
+            Map<String, String> rootNamespaces = Collections.emptyMap();
+            int depth = 0, entryStart = -1;
+
+            for (int i = indexOf(doc, '<', 0); i >= 0; i = indexOf(doc, '<', i)) {
+                if (startsWith(doc, i, "<?")) {
+                    i = endOf(doc, i, "?>");
+                } else if (startsWith(doc, i, "<!--")) {
+                    i = endOf(doc, i, "-->");
+                } else if (startsWith(doc, i, "<![CDATA[")) {
+                    i = endOf(doc, i, "]]>");
+                } else if (startsWith(doc, i, "<!")) {
+                    return null;  // DOCTYPE may declare entities
+                } else if (startsWith(doc, i, "</")) {
+                    i = endOf(doc, i, ">");
+                    if (i < 0) {
+                        return null;
+                    }
+                    if (--depth == 1 && entryStart >= 0) {
+                        scan.entries.add(new int[] { entryStart, i });
+                        entryStart = -1;
+                    }
+                } else {
+                    int end = tagEnd(doc, i);
+                    if (end < 0) {
+                        return null;
+                    }
+                    boolean empty = doc[end - 2] == '/';
+                    String name = tagName(doc, i);
+
+                    if (depth == 0) {
+                        if (empty) return null;
+                        scan.rootStart = i;
+                        scan.rootEnd = end;
+                        scan.rootName = name;
+                        rootNamespaces = namespaces(doc, i, end);
+
+                    } else if (depth == 1 && isAtomEntry(name, namespaces(doc, i, end), rootNamespaces)) {
+                        if (empty) {
+                            scan.entries.add(new int[] { i, end });
+                        } else {
+                            entryStart = i;
+                        }
+                    }
+                    if (!empty) depth++;
+                    i = end;
+                }
+                if (i < 0) {
+                    return null;
+                }
+            }
+            return depth == 0 && scan.rootName != null ? scan : null;
+        }
+
+        /**
+         * Returns the given part of the document wrapped in the root element.
+         */
+        InputStream wrap(int from, int to) {
+            List<InputStream> parts = new ArrayList<InputStream>(3);
+
+            parts.add(new ByteArrayInputStream(document, rootStart, rootEnd - rootStart));
+            parts.add(new ByteArrayInputStream(document, from, to - from));
+            parts.add(new ByteArrayInputStream(("</" + rootName + '>').getBytes(ASCII)));
+
+            return new SequenceInputStream(Collections.enumeration(parts));
+        }
+
+        /**
+         * Returns the document without the entries.
+         */
+        InputStream withoutEntries() {
+            List<InputStream> parts = new ArrayList<InputStream>(entries.size() + 1);
+            int pos = 0;
+
+            for (int[] entry : entries) {
+                parts.add(new ByteArrayInputStream(document, pos, entry[0] - pos));
+                pos = entry[1];
+            }
+            parts.add(new ByteArrayInputStream(document, pos, document.length - pos));
+
+            return new SequenceInputStream(Collections.enumeration(parts));
+        }
+
+
+        private static boolean isAtomEntry(String qname, Map<String, String> own, Map<String, String> root) {
+            int colon = qname.indexOf(':');
+            String prefix = colon > 0 ? qname.substring(0, colon) : "";
+
+            if (!qname.substring(colon + 1).equals("entry")) {
+                return false;
+            }
+            String namespace = own.containsKey(prefix) ? own.get(prefix) : root.get(prefix);
+            return ATOM_NS.equals(namespace);
+        }
+
+        /**
+         * Parses namespace declarations of the start tag.
+         */
+        private static Map<String, String> namespaces(byte[] doc, int from, int to) {
+            Map<String, String> namespaces = null;
+            String tag = new String(doc, from, to - from, ASCII);
+
+            for (int i = tag.indexOf("xmlns"); i >= 0; i = tag.indexOf("xmlns", i + 5)) {
+                if (!Character.isWhitespace(tag.charAt(i - 1))) {
+                    continue;
+                }
+                int eq = tag.indexOf('=', i);
+                if (eq < 0) {
+                    break;
+                }
+                String prefix = tag.substring(i + 5, eq).trim();
+                if (prefix.length() > 0 && prefix.charAt(0) != ':') {
+                    continue;  // e.g. attribute xmlnsfoo
+                }
+                int quote = eq + 1;
+                while (Character.isWhitespace(tag.charAt(quote))) quote++;
+                int close = tag.indexOf(tag.charAt(quote), quote + 1);
+
+                if (namespaces == null) {
+                    namespaces = new HashMap<String, String>(4);
+                }
+                namespaces.put(prefix.length() > 0 ? prefix.substring(1).trim() : "",
+                               tag.substring(quote + 1, close));
+            }
+            return namespaces != null ? namespaces : Collections.<String, String>emptyMap();
+        }
+
+        private static String tagName(byte[] doc, int start) {
+            int end = start + 1;
+            while (end < doc.length && doc[end] != '>' && doc[end] != '/' && doc[end] > ' ') {
+                end++;
+            }
+            return new String(doc, start + 1, end - start - 1, ASCII);
+        }
+
+        /**
+         * Returns index after the end of the start tag, honoring quoted
+         * attribute values, or -1.
+         */
+        private static int tagEnd(byte[] doc, int start) {
+            byte quote = 0;
+            for (int i = start + 1; i < doc.length; i++) {
+                byte b = doc[i];
+                if (quote != 0) {
+                    if (b == quote) quote = 0;
+                } else if (b == '"' || b == '\'') {
+                    quote = b;
+                } else if (b == '>') {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        private static int indexOf(byte[] doc, char c, int from) {
+            for (int i = from; i < doc.length; i++) {
+                if (doc[i] == c) return i;
+            }
+            return -1;
+        }
+
+        /**
+         * Returns index after the first occurrence of the given string, or -1.
+         */
+        private static int endOf(byte[] doc, int from, String str) {
+            for (int i = from; i <= doc.length - str.length(); i++) {
+                if (startsWith(doc, i, str)) return i + str.length();
+            }
+            return -1;
+        }
+
+        private static boolean startsWith(byte[] doc, int offset, String str) {
+            if (offset + str.length() > doc.length) {
+                return false;
+            }
+            for (int i = 0; i < str.length(); i++) {
+                if (doc[offset + i] != str.charAt(i)) return false;
+            }
+            return true;
+        }
+    }
+}
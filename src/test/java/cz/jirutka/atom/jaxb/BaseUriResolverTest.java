@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Jakub Jirutka <jakub@jirutka.cz>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package cz.jirutka.atom.jaxb;
+
+import java.net.URI;
+import junit.framework.TestCase;
+
+/**
+ * Checks {@link BaseUriResolver#resolve(URI, URI)} against the examples of
+ * <a href="http://tools.ietf.org/html/rfc3986#section-5.4">RFC 3986,
+ * section 5.4</a>.
+ *
+ * @author Jakub Jirutka <jakub@jirutka.cz>
+ */
+public class BaseUriResolverTest extends TestCase {
+
+    private static final URI BASE = URI.create("http://a/b/c/d;p?q");
+
+    /** Reference, expected target. */
+    private static final String[][] NORMAL_EXAMPLES = {
+        {"g:h",     "g:h"},
+        {"g",       "http://a/b/c/g"},
+        {"./g",     "http://a/b/c/g"},
+        {"g/",      "http://a/b/c/g/"},
+        {"/g",      "http://a/g"},
+        {"//g",     "http://g"},
+        {"?y",      "http://a/b/c/d;p?y"},
+        {"g?y",     "http://a/b/c/g?y"},
+        {"#s",      "http://a/b/c/d;p?q#s"},
+        {"g#s",     "http://a/b/c/g#s"},
+        {"g?y#s",   "http://a/b/c/g?y#s"},
+        {";x",      "http://a/b/c/;x"},
+        {"g;x",     "http://a/b/c/g;x"},
+        {"g;x?y#s", "http://a/b/c/g;x?y#s"},
+        {"",        "http://a/b/c/d;p?q"},
+        {".",       "http://a/b/c/"},
+        {"./",      "http://a/b/c/"},
+        {"..",      "http://a/b/"},
+        {"../",     "http://a/b/"},
+        {"../g",    "http://a/b/g"},
+        {"../..",   "http://a/"},
+        {"../../",  "http://a/"},
+        {"../../g", "http://a/g"}
+    };
+
+    /** Reference, expected target. */
+    private static final String[][] ABNORMAL_EXAMPLES = {
+        {"../../../g",    "http://a/g"},
+        {"../../../../g", "http://a/g"},
+        {"/./g",          "http://a/g"},
+        {"/../g",         "http://a/g"},
+        {"g.",            "http://a/b/c/g."},
+        {".g",            "http://a/b/c/.g"},
+        {"g..",           "http://a/b/c/g.."},
+        {"..g",           "http://a/b/c/..g"},
+        {"./../g",        "http://a/b/g"},
+        {"./g/.",         "http://a/b/c/g/"},
+        {"g/./h",         "http://a/b/c/g/h"},
+        {"g/../h",        "http://a/b/c/h"},
+        {"g;x=1/./y",     "http://a/b/c/g;x=1/y"},
+        {"g;x=1/../y",    "http://a/b/c/y"},
+        {"g?y/./x",       "http://a/b/c/g?y/./x"},
+        {"g?y/../x",      "http://a/b/c/g?y/../x"},
+        {"g#s/./x",       "http://a/b/c/g#s/./x"},
+        {"g#s/../x",      "http://a/b/c/g#s/../x"},
+        {"http:g",        "http:g"}
+    };
+
+
+    public void testNormalExamples() {
+        assertResolved(NORMAL_EXAMPLES);
+    }
+
+    public void testAbnormalExamples() {
+        assertResolved(ABNORMAL_EXAMPLES);
+    }
+
+    public void testBaseWithEmptyPath() {
+        assertEquals(URI.create("http://example.org/foo"),
+                BaseUriResolver.resolve(URI.create("http://example.org"), URI.create("foo")));
+    }
+
+    public void testRelativeBaseKeepsDotSegments() {
+        assertEquals(URI.create("items/../x"),
+                BaseUriResolver.resolve(URI.create("items/"), URI.create("../x")));
+    }
+
+
+    private static void assertResolved(String[][] examples) {
+        for (String[] example : examples) {
+            assertEquals("Resolving " + example[0], URI.create(example[1]),
+                    BaseUriResolver.resolve(BASE, URI.create(example[0])));
+        }
+    }
+}